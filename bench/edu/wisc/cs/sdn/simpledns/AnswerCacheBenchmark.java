@@ -0,0 +1,70 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+import edu.wisc.cs.sdn.simpledns.packet.DNSRdataAddress;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hit throughput of the answer cache as threads are added, for one shard against many and on the heap against off
+ * it. Scaling shows with the thread count, e.g. make bench BENCH="AnswerCacheBenchmark -t 1" and then -t 8, -t 32.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnswerCacheBenchmark {
+    private static final int NAMES = 1 << 14;
+
+    @Param({"1", "64"})
+    public int shards;
+
+    @Param({"0", "64"})
+    public int offHeapMb;
+
+    private ShardedAnswerCache cache;
+    private CacheKey[] keys;
+
+    /**
+     * Each thread writes into its own buffer and walks the names from its own starting point
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        final ByteBuffer buffer = ByteBuffer.allocate(512);
+        final DNSWriter writer = new DNSWriter();
+        int next = new Random().nextInt(NAMES);
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        cache = new ShardedAnswerCache(shards, NAMES, 0, 0, offHeapMb * (1L << 20));
+        keys = new CacheKey[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            DNSName name = DNSName.of("h" + i + ".bench.com");
+            DNSResourceRecord rr = new DNSResourceRecord(name, DNS.TYPE_A,
+                    new DNSRdataAddress(0x0a000000 | i));
+            rr.setClass(DNS.CLASS_IN);
+            rr.setTtl(86400);
+            DNSQuestion q = new DNSQuestion(name, DNS.TYPE_A);
+            cache.put(q, Collections.singletonList(rr));
+            keys[i] = new CacheKey(q);
+        }
+    }
+
+    @Benchmark
+    public long hit(Reader reader) {
+        reader.next = (reader.next + 1) & (NAMES - 1);
+        reader.buffer.clear();
+        return cache.writeAnswers(keys[reader.next], reader.writer.wrap(reader.buffer));
+    }
+}
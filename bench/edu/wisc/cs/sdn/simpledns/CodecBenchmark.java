@@ -0,0 +1,88 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing whole messages, and parsing names on their own, over the packets of a real resolution
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"QUERY", "ROOT_REFERRAL", "TLD_REFERRAL", "CNAME_ANSWER"})
+    public String packet;
+
+    private ByteBuffer wire;
+    private DNS parsed;
+    private ByteBuffer out;
+    // where each owner name and NS/CNAME target starts, most of them compression pointers
+    private int[] nameOffsets;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] data = (byte[]) Packets.class.getDeclaredField(packet).get(null);
+        wire = ByteBuffer.wrap(data);
+        parsed = DNS.deserialize(data, data.length);
+        out = ByteBuffer.allocate(65535);
+        nameOffsets = findNames(data);
+    }
+
+    @Benchmark
+    public DNS deserialize() {
+        wire.clear();
+        return DNS.deserialize(wire);
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        out.clear();
+        parsed.serialize(out);
+        return out;
+    }
+
+    @Benchmark
+    public void deserializeNames(Blackhole bh) {
+        for (int offset : nameOffsets) {
+            wire.position(offset);
+            bh.consume(DNS.deserializeName(wire));
+        }
+    }
+
+    private static int[] findNames(byte[] data) {
+        ByteBuffer bb = ByteBuffer.wrap(data);
+        int counts = (bb.getShort(4) & 0xffff) + (bb.getShort(6) & 0xffff) + (bb.getShort(8) & 0xffff)
+                + (bb.getShort(10) & 0xffff);
+        List<Integer> offsets = new ArrayList<Integer>();
+        bb.position(12);
+        for (int i = 0; i < (bb.getShort(4) & 0xffff); i++) {
+            offsets.add(bb.position());
+            DNSName.deserialize(bb);
+            bb.position(bb.position() + 4);
+        }
+        for (int i = bb.getShort(4) & 0xffff; i < counts; i++) {
+            offsets.add(bb.position());
+            DNSName.deserialize(bb);
+            short type = bb.getShort();
+            bb.position(bb.position() + 6);
+            int rdLength = bb.getShort() & 0xffff;
+            if (type == DNS.TYPE_NS || type == DNS.TYPE_CNAME)
+                offsets.add(bb.position());
+            bb.position(bb.position() + rdLength);
+        }
+        int[] result = new int[offsets.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = offsets.get(i);
+        return result;
+    }
+}
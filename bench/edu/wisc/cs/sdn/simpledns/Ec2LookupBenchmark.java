@@ -0,0 +1,63 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Longest prefix match over the shipped ec2.csv and over a table the size of the full published AWS range list, and
+ * the TXT record data memoized on top of it for addresses seen before
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Ec2LookupBenchmark {
+    private static final int ADDRESSES = 4096;
+
+    @Param({"csv", "large"})
+    public String table;
+
+    @Param({"100000"})
+    public int largeSize;
+
+    private Ec2PrefixTable prefixes;
+    private Ec2TextCache texts;
+    private int[] addresses;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        Random random = new Random(640);
+        if (table.equals("csv")) {
+            prefixes = Ec2PrefixTable.load("ec2.csv");
+        } else {
+            prefixes = new Ec2PrefixTable();
+            for (int i = 0; i < largeSize; i++) {
+                int mask = 8 + random.nextInt(25);
+                prefixes.put(random.nextInt(), mask, new SimpleDNS.Ec2Val(mask, "region-" + (i % 24)));
+            }
+        }
+        texts = new Ec2TextCache(prefixes);
+        // half the addresses are inside a known range, the rest are anywhere
+        addresses = new int[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++)
+            addresses[i] = (i % 2 == 0) ? SimpleDNS.toIPv4Address("54.0.0.0") | random.nextInt(1 << 24)
+                    : random.nextInt();
+    }
+
+    @Benchmark
+    public SimpleDNS.Ec2Val lookup() {
+        next = (next + 1) & (ADDRESSES - 1);
+        return prefixes.lookup(addresses[next]);
+    }
+
+    @Benchmark
+    public byte[] memoizedText() {
+        next = (next + 1) & (ADDRESSES - 1);
+        return texts.get(addresses[next]);
+    }
+}
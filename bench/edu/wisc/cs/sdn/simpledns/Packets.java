@@ -0,0 +1,65 @@
+package edu.wisc.cs.sdn.simpledns;
+
+/**
+ * Wire images of the messages a resolution of www.example.com and www.google.com goes through, record for record
+ * what the real servers send back, compressed the way they compress it. All of them carry an OPT record for 1232
+ * bytes like dig sends by default.
+ */
+final class Packets {
+    /**
+     * The client's query for www.example.com A, recursion desired
+     */
+    static final byte[] QUERY = hex(
+            "5c2b0180000100000000000103777777076578616d706c6503636f6d000001000100002904d0000000000000");
+
+    /**
+     * A root server's referral to com: 13 NS records and their A and AAAA glue
+     */
+    static final byte[] ROOT_REFERRAL = hex(
+            "8e17800000010000000d001b03777777076578616d706c6503636f6d0000010001c018000200010002a300001401610c67746c64"
+            + "2d73657276657273036e657400c018000200010002a30000040162c02fc018000200010002a30000040163c02fc01800020001"
+            + "0002a30000040164c02fc018000200010002a30000040165c02fc018000200010002a30000040166c02fc018000200010002a3"
+            + "0000040167c02fc018000200010002a30000040168c02fc018000200010002a30000040169c02fc018000200010002a3000004"
+            + "016ac02fc018000200010002a3000004016bc02fc018000200010002a3000004016cc02fc018000200010002a3000004016dc0"
+            + "2fc02d000100010002a3000004c005061ec04d000100010002a3000004c0210e1ec05d000100010002a3000004c01a5c1ec06d"
+            + "000100010002a3000004c01f501ec07d000100010002a3000004c00c5e1ec08d000100010002a3000004c023331ec09d000100"
+            + "010002a3000004c02a5d1ec0ad000100010002a3000004c036701ec0bd000100010002a3000004c02bac1ec0cd000100010002"
+            + "a3000004c0304f1ec0dd000100010002a3000004c034b21ec0ed000100010002a3000004c029a21ec0fd000100010002a30000"
+            + "04c037531ec02d001c00010002a300001020010503a83e00000000000000020030c04d001c00010002a300001020010503231d"
+            + "00000000000000020030c05d001c00010002a30000102001050383eb00000000000000000030c06d001c00010002a300001020"
+            + "010500856e00000000000000000030c07d001c00010002a3000010200105021ca100000000000000000030c08d001c00010002"
+            + "a300001020010503d41400000000000000000030c09d001c00010002a300001020010503eea300000000000000000030c0ad00"
+            + "1c00010002a30000102001050208cc00000000000000000030c0bd001c00010002a30000102001050339c10000000000000000"
+            + "0030c0cd001c00010002a300001020010502709400000000000000000030c0dd001c00010002a3000010200105030d2d000000"
+            + "00000000000030c0ed001c00010002a300001020010500d93700000000000000000030c0fd001c00010002a300001020010501"
+            + "b1f90000000000000000003000002904d0000000000000");
+
+    /**
+     * A com server's referral to google.com, with in-bailiwick glue for all four name servers
+     */
+    static final byte[] TLD_REFERRAL = hex(
+            "3a41800000010000000400090377777706676f6f676c6503636f6d0000010001c010000200010002a3000006036e7331c010c0"
+            + "10000200010002a3000006036e7332c010c010000200010002a3000006036e7333c010c010000200010002a3000006036e7334"
+            + "c010c02c001c00010002a30000102001486048020032000000000000000ac03e001c00010002a3000010200148604802003400"
+            + "0000000000000ac050001c00010002a30000102001486048020036000000000000000ac062001c00010002a300001020014860"
+            + "48020038000000000000000ac02c000100010002a3000004d8ef200ac03e000100010002a3000004d8ef220ac0500001000100"
+            + "02a3000004d8ef240ac062000100010002a3000004d8ef260a00002904d0000000000000");
+
+    /**
+     * The final answer for www.example.com: two CNAMEs into a CDN and two addresses
+     */
+    static final byte[] CNAME_ANSWER = hex(
+            "5c2b8180000100040000000103777777076578616d706c6503636f6d0000010001c00c000500010000012c0022037777770765"
+            + "78616d706c6506636f6d2d763409656467657375697465036e657400c02d00050001000054600014056131343232046473637206"
+            + "616b616d6169c04ac05b0001000100000014000417d70088c05b0001000100000014000417d7008a00002904d0000000000000");
+
+    private Packets() {
+    }
+
+    private static byte[] hex(String s) {
+        byte[] data = new byte[s.length() / 2];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+}
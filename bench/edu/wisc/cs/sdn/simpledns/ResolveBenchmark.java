@@ -0,0 +1,86 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Whole queries through the resolver in process, against the harness's FakeAuthority serving bench/zones.txt on
+ * 127.0.0.1 (root), 127.0.0.2 (TLD) and 127.0.0.3 (leaf), from the client's query to the serialized reply.
+ *
+ * cacheHit answers a warm name, delegatedMiss a new name in a zone whose cut is cached (one upstream round trip) and
+ * rootMiss a new name under cuts with a zero TTL, which is walked down from the root every time (three round trips).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolveBenchmark {
+    private FakeAuthority authority;
+    private SimpleDNS.ServerArgs serverArgs;
+    private final AtomicLong nextName = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        InetAddress rootAddress = InetAddress.getByName("127.0.0.1");
+        // every server has to be on the port the resolver asks, so borrow one that is free on the root's address
+        DatagramSocket probe = new DatagramSocket(new InetSocketAddress(rootAddress, 0));
+        int port = probe.getLocalPort();
+        probe.close();
+        authority = FakeAuthority.load("bench/zones.txt", port);
+        authority.start();
+        serverArgs = new SimpleDNS.ServerArgs(rootAddress.getHostAddress(), "ec2.csv", 1, 1 << 20, 0, 1, 0, 2000, 0,
+                1232, 0, 0, 0, Level.WARNING, port, null, 0);
+        resolve(query("www.bench.com"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        authority.close();
+    }
+
+    @Benchmark
+    public ByteBuffer cacheHit() {
+        return resolve(query("www.bench.com"));
+    }
+
+    @Benchmark
+    public ByteBuffer delegatedMiss() {
+        return resolve(query("h" + nextName.incrementAndGet() + ".bench.com"));
+    }
+
+    @Benchmark
+    public ByteBuffer rootMiss() {
+        return resolve(query("h" + nextName.incrementAndGet() + ".d.t"));
+    }
+
+    private ByteBuffer resolve(DNS query) {
+        DNS reply = SimpleDNS.answerFromCache(query, serverArgs);
+        if (reply == null)
+            reply = SimpleDNS.handleQuestions(query, serverArgs);
+        SimpleDNS.finishReply(reply, query, serverArgs);
+        ByteBuffer out = ByteBuffer.allocate(serverArgs.ednsSize);
+        reply.serialize(out);
+        return out;
+    }
+
+    private static DNS query(String name) {
+        DNS dns = new DNS();
+        dns.setQuery(true);
+        dns.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+        dns.setRecursionDesired(true);
+        dns.addQuestion(new DNSQuestion(DNSName.of(name), DNS.TYPE_A));
+        return dns;
+    }
+}
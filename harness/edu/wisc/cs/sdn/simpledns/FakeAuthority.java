@@ -0,0 +1,348 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.*;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of authoritative servers on loopback addresses, serving zone data from a file, so the resolver can be run
+ * and loaded without the internet.
+ *
+ * Every server gets its own socket on the same port and answers like an authority would: a referral with glue when
+ * the name is below a delegation in its zone, an authoritative answer (following CNAMEs inside the zone) when it
+ * owns the name, NXDOMAIN or NODATA with the zone's SOA otherwise, and REFUSED for names in no zone it serves,
+ * which is what a lame delegation to it looks like. A "*" owner answers for any name one label below it. Servers
+ * can be made to drop a fraction of queries and to answer late.
+ *
+ * The zone file is line based, # starts a comment:
+ * <pre>
+ * server &lt;address&gt; [delay=&lt;ms&gt;] [loss=&lt;fraction&gt;]   the lines that follow belong to this server
+ * zone &lt;apex&gt;                                     the server is authoritative for apex ("." is the root)
+ * &lt;owner&gt; &lt;ttl&gt; &lt;A|AAAA|NS|CNAME&gt; &lt;data&gt;              a record in the current zone
+ * </pre>
+ */
+class FakeAuthority {
+    private static final int NEGATIVE_TTL = 300;
+
+    private final List<Server> servers;
+    private final ScheduledExecutorService delayed;
+
+    private FakeAuthority(List<Server> servers) {
+        this.servers = servers;
+        this.delayed = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * usage: FakeAuthority &lt;zone file&gt; [port], the port defaults to 53
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2)
+            throw new IllegalArgumentException("Required format: java edu.wisc.cs.sdn.simpledns.FakeAuthority "
+                    + "<zone file> [port]");
+        FakeAuthority authority = load(args[0], (args.length > 1) ? Integer.parseInt(args[1]) : 53);
+        authority.start();
+        for (Server server : authority.servers) {
+            List<String> apexes = new ArrayList<String>();
+            for (DNSName apex : server.zones.keySet())
+                apexes.add((apex.getLabelCount() == 0) ? "." : apex.toString());
+            System.out.println("Serving " + apexes + " on " + server.socket.getLocalSocketAddress()
+                    + ((server.delayMs > 0 || server.loss > 0)
+                    ? " with " + server.delayMs + " ms delay and " + server.loss + " loss" : ""));
+        }
+    }
+
+    static FakeAuthority load(String zoneFile, int port) throws IOException {
+        List<Server> servers = new ArrayList<Server>();
+        Server server = null;
+        Zone zone = null;
+        BufferedReader reader = new BufferedReader(new FileReader(zoneFile));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty())
+                    continue;
+                try {
+                    if (fields[0].equals("server")) {
+                        server = new Server(InetAddress.getByName(fields[1]), port);
+                        for (int i = 2; i < fields.length; i++) {
+                            if (fields[i].startsWith("delay="))
+                                server.delayMs = Integer.parseInt(fields[i].substring(6));
+                            else if (fields[i].startsWith("loss="))
+                                server.loss = Double.parseDouble(fields[i].substring(5));
+                            else
+                                throw new IllegalArgumentException("Unknown option " + fields[i]);
+                        }
+                        servers.add(server);
+                        zone = null;
+                    } else if (fields[0].equals("zone")) {
+                        if (server == null)
+                            throw new IllegalArgumentException("zone before any server");
+                        zone = new Zone(DNSName.of(fields[1]));
+                        server.zones.put(zone.apex, zone);
+                    } else {
+                        if (zone == null)
+                            throw new IllegalArgumentException("record before any zone");
+                        zone.add(parseRecord(fields));
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException(zoneFile + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new FakeAuthority(servers);
+    }
+
+    private static DNSResourceRecord parseRecord(String[] fields) throws IOException {
+        if (fields.length != 4)
+            throw new IllegalArgumentException("Expected <owner> <ttl> <type> <data>");
+        DNSRdata data;
+        short type;
+        if (fields[2].equals("A") || fields[2].equals("AAAA")) {
+            type = fields[2].equals("A") ? DNS.TYPE_A : DNS.TYPE_AAAA;
+            data = new DNSRdataAddress(InetAddress.getByName(fields[3]));
+        } else if (fields[2].equals("NS") || fields[2].equals("CNAME")) {
+            type = fields[2].equals("NS") ? DNS.TYPE_NS : DNS.TYPE_CNAME;
+            data = new DNSRdataName(DNSName.of(fields[3]));
+        } else {
+            throw new IllegalArgumentException("Unsupported type " + fields[2]);
+        }
+        return record(DNSName.of(fields[0]), type, Integer.parseInt(fields[1]), data);
+    }
+
+    private static DNSResourceRecord record(DNSName name, short type, int ttl, DNSRdata data) {
+        DNSResourceRecord rr = new DNSResourceRecord(name, type, data);
+        rr.setClass(DNS.CLASS_IN);
+        rr.setTtl(ttl);
+        return rr;
+    }
+
+    /**
+     * Starts a receiving thread per server
+     */
+    void start() {
+        for (final Server server : servers) {
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    serve(server);
+                }
+            }, "fake-authority-" + server.socket.getLocalAddress().getHostAddress());
+            t.start();
+        }
+    }
+
+    void close() {
+        for (Server server : servers)
+            server.socket.close();
+        delayed.shutdownNow();
+    }
+
+    private void serve(final Server server) {
+        byte[] buff = new byte[65535];
+        DatagramPacket pk = new DatagramPacket(buff, buff.length);
+        while (true) {
+            try {
+                pk.setLength(buff.length);
+                server.socket.receive(pk);
+                if (server.loss > 0 && ThreadLocalRandom.current().nextDouble() < server.loss)
+                    continue;
+                DNS query = DNS.deserialize(pk.getData(), pk.getLength());
+                if (query.getQuestions().isEmpty())
+                    continue;
+                byte[] reply = server.answer(query).serialize();
+                final DatagramPacket out = new DatagramPacket(reply, reply.length, pk.getSocketAddress());
+                if (server.delayMs == 0) {
+                    server.socket.send(out);
+                    continue;
+                }
+                delayed.schedule(new Runnable() {
+                    public void run() {
+                        try {
+                            server.socket.send(out);
+                        } catch (IOException e) {
+                            // closed meanwhile
+                        }
+                    }
+                }, server.delayMs, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Dropping query: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class Server {
+        final DatagramSocket socket;
+        final Map<DNSName, Zone> zones;
+        int delayMs;
+        double loss;
+
+        Server(InetAddress address, int port) throws IOException {
+            this.socket = new DatagramSocket(new InetSocketAddress(address, port));
+            this.zones = new HashMap<DNSName, Zone>();
+        }
+
+        DNS answer(DNS query) {
+            DNSQuestion q = query.getQuestions().get(0);
+            DNS reply = new DNS();
+            reply.setId(query.getId());
+            reply.setQuery(false);
+            reply.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+            reply.setRecursionDesired(query.isRecursionDesired());
+            reply.addQuestion(q);
+
+            Zone zone = null;
+            for (DNSName n = q.getName(); n != null && zone == null; n = n.parent())
+                zone = zones.get(n);
+            if (zone == null) {
+                reply.setRcode(DNS.RCODE_REFUSED);
+                return reply;
+            }
+
+            DNSName cut = zone.findCut(q.getName());
+            if (cut != null) {
+                for (DNSResourceRecord ns : zone.get(cut, DNS.TYPE_NS)) {
+                    reply.addAuthority(ns);
+                    DNSName target = ((DNSRdataName) ns.getData()).getName();
+                    for (DNSResourceRecord glue : zone.get(target, DNS.TYPE_A))
+                        reply.addAdditional(glue);
+                    for (DNSResourceRecord glue : zone.get(target, DNS.TYPE_AAAA))
+                        reply.addAdditional(glue);
+                }
+                return reply;
+            }
+
+            reply.setAuthoritative(true);
+            DNSName name = q.getName();
+            for (int hops = 0; hops < 8; hops++) {
+                List<DNSResourceRecord> matching = zone.lookup(name, q.getType());
+                if (!matching.isEmpty()) {
+                    reply.getAnswers().addAll(matching);
+                    return reply;
+                }
+                List<DNSResourceRecord> cname = zone.lookup(name, DNS.TYPE_CNAME);
+                if (cname.isEmpty())
+                    break;
+                reply.getAnswers().addAll(cname);
+                name = ((DNSRdataName) cname.get(0).getData()).getName();
+                // the rest of the chain is for the resolver to follow
+                if (!name.isSubdomainOf(zone.apex))
+                    return reply;
+            }
+            if (reply.getAnswers().isEmpty()) {
+                if (!zone.exists(name))
+                    reply.setRcode(DNS.RCODE_NAME_ERROR);
+                reply.addAuthority(zone.soa());
+            }
+            return reply;
+        }
+    }
+
+    private static class Zone {
+        final DNSName apex;
+        final Map<DNSName, List<DNSResourceRecord>> records;
+
+        Zone(DNSName apex) {
+            this.apex = apex;
+            this.records = new HashMap<DNSName, List<DNSResourceRecord>>();
+        }
+
+        void add(DNSResourceRecord rr) {
+            if (!rr.getName().isSubdomainOf(apex))
+                throw new IllegalArgumentException(rr.getName() + " is not in " + (apex.getLabelCount() == 0
+                        ? "the root zone" : apex.toString()));
+            List<DNSResourceRecord> list = records.get(rr.getName());
+            if (list == null) {
+                list = new ArrayList<DNSResourceRecord>();
+                records.put(rr.getName(), list);
+            }
+            list.add(rr);
+        }
+
+        /**
+         * @return the delegation closest to the apex that name falls under, or null if the zone has the name itself
+         */
+        DNSName findCut(DNSName name) {
+            DNSName cut = null;
+            for (DNSName n = name; !n.equals(apex); n = n.parent()) {
+                if (!get(n, DNS.TYPE_NS).isEmpty())
+                    cut = n;
+            }
+            return cut;
+        }
+
+        List<DNSResourceRecord> get(DNSName name, short type) {
+            List<DNSResourceRecord> matching = new ArrayList<DNSResourceRecord>();
+            List<DNSResourceRecord> list = records.get(name);
+            if (list != null) {
+                for (DNSResourceRecord rr : list) {
+                    if (rr.getType() == type)
+                        matching.add(rr);
+                }
+            }
+            return matching;
+        }
+
+        /**
+         * Like get, but a name with no records of its own is answered from the wildcard one label up
+         */
+        List<DNSResourceRecord> lookup(DNSName name, short type) {
+            if (records.containsKey(name) || name.equals(apex))
+                return get(name, type);
+            List<DNSResourceRecord> matching = new ArrayList<DNSResourceRecord>();
+            for (DNSResourceRecord rr : get(wildcard(name), type))
+                matching.add(record(name, rr.getType(), rr.getTtl(), rr.getData()));
+            return matching;
+        }
+
+        boolean exists(DNSName name) {
+            if (records.containsKey(name) || name.equals(apex))
+                return true;
+            if (records.containsKey(wildcard(name)))
+                return true;
+            // an empty non-terminal has no records but names below it
+            for (DNSName owner : records.keySet()) {
+                if (owner.isSubdomainOf(name))
+                    return true;
+            }
+            return false;
+        }
+
+        DNSResourceRecord soa() {
+            String suffix = (apex.getLabelCount() == 0) ? "" : "." + apex;
+            DNSRdataSOA soa = new DNSRdataSOA();
+            soa.setMname(DNSName.of("ns" + suffix));
+            soa.setRname(DNSName.of("hostmaster" + suffix));
+            soa.setSerial(1);
+            soa.setRefresh(3600);
+            soa.setRetry(600);
+            soa.setExpire(86400);
+            soa.setMinimum(NEGATIVE_TTL);
+            return record(apex, DNS.TYPE_SOA, NEGATIVE_TTL, soa);
+        }
+
+        private static DNSName wildcard(DNSName name) {
+            DNSName parent = name.parent();
+            return DNSName.of((parent == null || parent.getLabelCount() == 0) ? "*" : "*." + parent);
+        }
+    }
+}
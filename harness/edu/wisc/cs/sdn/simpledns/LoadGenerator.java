@@ -0,0 +1,329 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a Zipf distributed name workload against a resolver over UDP and reports throughput, latency and errors.
+ *
+ * Names are either n0.zone, n1.zone, ... or read from a file, most popular first, and the name of rank k is picked
+ * with probability proportional to 1 / (k + 1)^exponent. At most a fixed number of queries are outstanding at once.
+ * With a target rate the queries are paced open loop, and latency counts from when a query was due rather than when
+ * it got sent, so a stalled resolver shows up in the percentiles instead of just slowing the sender down. Every
+ * second prints a line for that second, the end prints the whole run.
+ */
+class LoadGenerator {
+    private final InetSocketAddress server;
+    private final byte[][] queries;
+    private final double[] cdf;
+    private final double exponent;
+    private final int concurrency;
+    private final int targetQps;
+    private final long durationNanos;
+    private final long timeoutNanos;
+    private final SplittableRandom random;
+
+    // when each transaction ID went out, 0 while the ID is free
+    private final AtomicLongArray sentAt;
+    private final Semaphore window;
+    private final AtomicLong sent;
+    private final AtomicLong answered;
+    private final AtomicLong timeouts;
+    private final AtomicLongArray byRcode;
+    private final LatencyHistogram total;
+    private final AtomicReference<LatencyHistogram> interval;
+
+    private LoadGenerator(InetSocketAddress server, List<String> names, double exponent, int concurrency,
+                          int targetQps, int durationSeconds, int timeoutMs, long seed) {
+        this.server = server;
+        this.queries = new byte[names.size()][];
+        for (int i = 0; i < queries.length; i++)
+            queries[i] = query(names.get(i));
+        this.cdf = zipf(names.size(), exponent);
+        this.exponent = exponent;
+        this.concurrency = concurrency;
+        this.targetQps = targetQps;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        this.random = new SplittableRandom(seed);
+        this.sentAt = new AtomicLongArray(1 << 16);
+        this.window = new Semaphore(concurrency);
+        this.sent = new AtomicLong();
+        this.answered = new AtomicLong();
+        this.timeouts = new AtomicLong();
+        this.byRcode = new AtomicLongArray(16);
+        this.total = new LatencyHistogram();
+        this.interval = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 8053;
+        String zone = "example.com";
+        String namesFile = null;
+        int nameCount = 10000;
+        double exponent = 1.0;
+        int concurrency = 100;
+        int targetQps = 0;
+        int durationSeconds = 10;
+        int timeoutMs = 2000;
+        long seed = 640;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-s"))
+                host = args[i + 1];
+            else if (args[i].equals("-p"))
+                port = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-z"))
+                zone = args[i + 1];
+            else if (args[i].equals("-f"))
+                namesFile = args[i + 1];
+            else if (args[i].equals("-n"))
+                nameCount = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-a"))
+                exponent = Double.parseDouble(args[i + 1]);
+            else if (args[i].equals("-c"))
+                concurrency = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-q"))
+                targetQps = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-d"))
+                durationSeconds = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-t"))
+                timeoutMs = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-S"))
+                seed = Long.parseLong(args[i + 1]);
+            else
+                throw usage();
+        }
+        // IDs of timed out queries are reused, so leave plenty of them free
+        if ((args.length % 2) != 0 || nameCount < 1 || exponent < 0 || concurrency < 1 || concurrency > 32768
+                || targetQps < 0 || durationSeconds < 1 || timeoutMs < 1)
+            throw usage();
+
+        List<String> names = new ArrayList<String>();
+        if (namesFile != null) {
+            for (String line : Files.readAllLines(Paths.get(namesFile), StandardCharsets.US_ASCII)) {
+                if (!line.trim().isEmpty() && !line.startsWith("#"))
+                    names.add(line.trim());
+            }
+        } else {
+            for (int i = 0; i < nameCount; i++)
+                names.add("n" + i + "." + zone);
+        }
+        new LoadGenerator(new InetSocketAddress(host, port), names, exponent, concurrency, targetQps,
+                durationSeconds, timeoutMs, seed).run();
+    }
+
+    private static IllegalArgumentException usage() {
+        return new IllegalArgumentException("Required format: java edu.wisc.cs.sdn.simpledns.LoadGenerator "
+                + "[-s <resolver address>] [-p <port>] [-z <zone> | -f <names file>] [-n <names>] "
+                + "[-a <zipf exponent>] [-c <max outstanding>] [-q <target qps, 0 for as fast as possible>] "
+                + "[-d <seconds>] [-t <timeout ms>] [-S <random seed>]");
+    }
+
+    private void run() throws IOException, InterruptedException {
+        final DatagramChannel channel = DatagramChannel.open();
+        channel.connect(server);
+        channel.socket().setReceiveBufferSize(4 << 20);
+        Thread receiver = new Thread(new Runnable() {
+            public void run() {
+                receive(channel);
+            }
+        }, "loadgen-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                reapTimeouts();
+            }
+        }, "loadgen-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+
+        System.out.println(String.format(Locale.ROOT, "%d names, zipf %.2f, %d outstanding, %s, %d s against %s",
+                queries.length, exponent, concurrency,
+                (targetQps > 0) ? targetQps + " qps" : "unpaced", TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                server));
+        ByteBuffer tx = ByteBuffer.allocate(512);
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long lastSent = 0;
+        long lastAnswered = 0;
+        long lastErrors = 0;
+        long intervalNanos = (targetQps > 0) ? TimeUnit.SECONDS.toNanos(1) / targetQps : 0;
+        long due = start;
+        int id = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                long s = sent.get();
+                long a = answered.get();
+                long e = errors();
+                LatencyHistogram h = interval.getAndSet(new LatencyHistogram());
+                System.out.println(String.format(Locale.ROOT,
+                        "%3ds sent %7d/s answered %7d/s errors %5d  p50 %8.3f ms  p99 %8.3f ms  p999 %8.3f ms",
+                        TimeUnit.NANOSECONDS.toSeconds(nextReport - start), s - lastSent, a - lastAnswered,
+                        e - lastErrors, 1e3 * h.quantileSeconds(0.5), 1e3 * h.quantileSeconds(0.99),
+                        1e3 * h.quantileSeconds(0.999)));
+                lastSent = s;
+                lastAnswered = a;
+                lastErrors = e;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            if (now >= end)
+                break;
+            if (intervalNanos > 0 && now < due) {
+                LockSupport.parkNanos(Math.min(due, nextReport) - now);
+                continue;
+            }
+            if (!window.tryAcquire(Math.max(1, Math.min(end, nextReport) - now), TimeUnit.NANOSECONDS))
+                continue;
+            do {
+                id = (id + 1) & 0xffff;
+            } while (sentAt.get(id) != 0);
+            byte[] query = queries[sample()];
+            tx.clear();
+            tx.put(query);
+            tx.putShort(0, (short) id);
+            tx.flip();
+            long stamp = (intervalNanos > 0) ? due : System.nanoTime();
+            sentAt.set(id, (stamp == 0) ? 1 : stamp);
+            channel.write(tx);
+            sent.incrementAndGet();
+            due += intervalNanos;
+        }
+        // give the stragglers until the timeout to come back
+        long drainUntil = System.nanoTime() + timeoutNanos;
+        while (window.availablePermits() < concurrency && System.nanoTime() < drainUntil)
+            Thread.sleep(10);
+        long elapsed = System.nanoTime() - start;
+        channel.close();
+        report(elapsed);
+    }
+
+    private void receive(DatagramChannel channel) {
+        ByteBuffer rx = ByteBuffer.allocate(65535);
+        try {
+            while (true) {
+                rx.clear();
+                channel.receive(rx);
+                long now = System.nanoTime();
+                if (rx.position() < 12)
+                    continue;
+                int id = rx.getShort(0) & 0xffff;
+                long stamp = sentAt.getAndSet(id, 0);
+                // already timed out, or not ours
+                if (stamp == 0)
+                    continue;
+                window.release();
+                answered.incrementAndGet();
+                byRcode.incrementAndGet(rx.get(3) & 0xf);
+                total.record(now - stamp);
+                interval.get().record(now - stamp);
+            }
+        } catch (ClosedChannelException e) {
+            // the run is over
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void reapTimeouts() {
+        while (true) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (int id = 0; id < sentAt.length(); id++) {
+                long stamp = sentAt.get(id);
+                if (stamp != 0 && now - stamp > timeoutNanos && sentAt.compareAndSet(id, stamp, 0)) {
+                    timeouts.incrementAndGet();
+                    window.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return timeouts and replies that aren't an answer, NXDOMAIN counts as an answer
+     */
+    private long errors() {
+        long errors = timeouts.get();
+        for (int rcode = 0; rcode < 16; rcode++) {
+            if (rcode != DNS.RCODE_NO_ERROR && rcode != DNS.RCODE_NAME_ERROR)
+                errors += byRcode.get(rcode);
+        }
+        return errors;
+    }
+
+    private void report(long elapsedNanos) {
+        long s = sent.get();
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "sent %d in %.1f s, %.0f qps, answered %.0f qps", s, seconds,
+                s / seconds, answered.get() / seconds));
+        System.out.println(String.format(Locale.ROOT, "latency p50 %.3f ms  p99 %.3f ms  p999 %.3f ms  max %.3f ms",
+                1e3 * total.quantileSeconds(0.5), 1e3 * total.quantileSeconds(0.99),
+                1e3 * total.quantileSeconds(0.999), 1e3 * total.quantileSeconds(1)));
+        StringBuilder rcodes = new StringBuilder();
+        for (int rcode = 0; rcode < 16; rcode++) {
+            if (byRcode.get(rcode) > 0)
+                rcodes.append(' ').append(Metrics.rcodeName(rcode)).append(' ').append(byRcode.get(rcode));
+        }
+        System.out.println("replies" + rcodes + ", timeouts " + timeouts.get());
+        System.out.println(String.format(Locale.ROOT, "error rate %.3f%% (timeouts, SERVFAIL, REFUSED and the like)",
+                (s == 0) ? 0 : 100.0 * errors() / s));
+    }
+
+    /**
+     * @return the rank of a name drawn from the Zipf distribution
+     */
+    private int sample() {
+        int i = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min((i >= 0) ? i : -i - 1, cdf.length - 1);
+    }
+
+    private static double[] zipf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int k = 0; k < n; k++) {
+            sum += 1 / Math.pow(k + 1, exponent);
+            cdf[k] = sum;
+        }
+        for (int k = 0; k < n; k++)
+            cdf[k] /= sum;
+        return cdf;
+    }
+
+    private static byte[] query(String name) {
+        DNS dns = new DNS();
+        dns.setQuery(true);
+        dns.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+        dns.setRecursionDesired(true);
+        dns.addQuestion(new DNSQuestion(DNSName.of(name), DNS.TYPE_A));
+        return dns.serialize();
+    }
+}
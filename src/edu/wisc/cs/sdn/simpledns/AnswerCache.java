@@ -0,0 +1,343 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of answer sets keyed by (name, type, class).
+ *
+ * Entries live for the smallest TTL in their answer set and are only expired when they are looked up
+ * (or pushed out by eviction). Hits hand back copies with the TTLs counted down by the time spent in the cache.
+ * Every entry also keeps its answers pre-serialized, so a hit can be copied straight into a response buffer.
+ *
+ * A hit in the last prefetchPercent of an entry's TTL asks the prefetcher to refresh it in the background, so hot
+ * names never actually expire. Expired entries are kept for maxStaleMs more, to be served stale (RFC 8767) when
+ * upstream can't be reached.
+ *
+ * Given off-heap memory the entries go into a SlabStore instead of the map, bounded by bytes rather than by count,
+ * with its second chance eviction standing in for LRU.
+ *
+ * The server doesn't use one of these directly, ShardedAnswerCache spreads the keys over several of them.
+ */
+class AnswerCache {
+    // RFC 8767 suggests 30 seconds, short enough that clients come back soon for the real thing
+    static final int STALE_TTL = 30;
+
+    /**
+     * Gets told about entries worth refreshing, it is called with the cache locked so it should only hand off
+     */
+    interface Prefetcher {
+        void prefetch(CacheKey key);
+    }
+
+    private final int capacity;
+    private final int prefetchPercent;
+    private final long maxStaleMs;
+    private final LinkedHashMap<CacheKey, Entry> entries;
+    // null when entries are kept on the heap
+    private final SlabStore store;
+    private Prefetcher prefetcher;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long prefetches;
+    private long staleHits;
+
+    /**
+     * @param capacity        most entries kept on the heap
+     * @param prefetchPercent 0 turns prefetching off
+     * @param maxStaleMs      0 turns serving stale answers off
+     * @param offHeapBytes    if not 0, entries are kept in this much direct memory and capacity doesn't apply
+     */
+    AnswerCache(final int capacity, int prefetchPercent, long maxStaleMs, long offHeapBytes) {
+        this.capacity = capacity;
+        this.prefetchPercent = prefetchPercent;
+        this.maxStaleMs = maxStaleMs;
+        this.store = (offHeapBytes > 0) ? new SlabStore(offHeapBytes, maxStaleMs) : null;
+        // access order, so the eldest entry is always the least recently used one
+        this.entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+                if (size() > AnswerCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return copies of the cached answers with their remaining TTLs, or null on a miss
+     */
+    List<DNSResourceRecord> get(DNSQuestion q) {
+        return get(q, true);
+    }
+
+    /**
+     * @param count false when the lookup was already counted, as when a hit written on the wire path turned out too
+     *              big for the client and is read again to be truncated
+     */
+    synchronized List<DNSResourceRecord> get(DNSQuestion q, boolean count) {
+        long now = System.currentTimeMillis();
+        CacheKey key = new CacheKey(q);
+        List<DNSResourceRecord> records;
+        long insertedAt;
+        if (store != null) {
+            long ref = lookupStored(key, now, count);
+            if (ref == 0)
+                return null;
+            records = decode(store.getWire(ref));
+            insertedAt = store.getInsertedAt(ref);
+        } else {
+            Entry entry = lookup(key, now, count);
+            if (entry == null)
+                return null;
+            records = entry.records();
+            insertedAt = entry.insertedAt;
+        }
+        int elapsed = (int) ((now - insertedAt) / 1000);
+        List<DNSResourceRecord> answers = new ArrayList<DNSResourceRecord>(records.size());
+        for (DNSResourceRecord rr : records)
+            answers.add(copyWithTtl(rr, rr.getTtl() - elapsed));
+        return answers;
+    }
+
+    /**
+     * Copies the cached answers for the key into a message, with the TTLs they were cached with
+     *
+     * @return when the answers were cached, so the caller can count their TTLs down, or -1 on a miss
+     */
+    synchronized long writeAnswers(LookupKey key, DNSWriter out) {
+        long now = System.currentTimeMillis();
+        if (store != null) {
+            long ref = lookupStored(key, now, true);
+            if (ref == 0)
+                return -1;
+            store.writeWire(ref, out);
+            return store.getInsertedAt(ref);
+        }
+        Entry entry = lookup(key, now, true);
+        if (entry == null)
+            return -1;
+        out.put(entry.wire, 0, entry.wire.length);
+        return entry.insertedAt;
+    }
+
+    /**
+     * @return copies of an expired answer set with a short TTL, or null if there isn't one still within maxStaleMs
+     */
+    synchronized List<DNSResourceRecord> getStale(DNSQuestion q) {
+        long now = System.currentTimeMillis();
+        List<DNSResourceRecord> records;
+        if (store != null) {
+            long ref = store.find(new CacheKey(q));
+            if (ref == 0 || now >= store.getExpiresAt(ref) + maxStaleMs)
+                return null;
+            records = decode(store.getWire(ref));
+        } else {
+            Entry entry = entries.get(new CacheKey(q));
+            if (entry == null || now >= entry.expiresAt + maxStaleMs)
+                return null;
+            records = entry.records();
+        }
+        staleHits++;
+        List<DNSResourceRecord> answers = new ArrayList<DNSResourceRecord>(records.size());
+        for (DNSResourceRecord rr : records)
+            answers.add(copyWithTtl(rr, STALE_TTL));
+        return answers;
+    }
+
+    synchronized void setPrefetcher(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    private Entry lookup(LookupKey key, long now, boolean count) {
+        Entry entry = entries.get(key);
+        if (entry == null || now >= entry.expiresAt) {
+            // expired entries stay around for a while in case they have to be served stale
+            if (entry != null && now >= entry.expiresAt + maxStaleMs)
+                entries.remove(key);
+            if (count)
+                misses++;
+            return null;
+        }
+        if (count)
+            hits++;
+        if (!entry.prefetching && shouldPrefetch(entry.insertedAt, entry.expiresAt, now)) {
+            entry.prefetching = true;
+            prefetches++;
+            prefetcher.prefetch(key.toCacheKey());
+        }
+        return entry;
+    }
+
+    /**
+     * lookup for entries in the store
+     *
+     * @return the entry's ref, or 0 on a miss
+     */
+    private long lookupStored(LookupKey key, long now, boolean count) {
+        long ref = store.find(key);
+        long expiresAt = (ref == 0) ? 0 : store.getExpiresAt(ref);
+        if (ref == 0 || now >= expiresAt) {
+            if (ref != 0 && now >= expiresAt + maxStaleMs)
+                store.remove(ref);
+            if (count)
+                misses++;
+            return 0;
+        }
+        if (count)
+            hits++;
+        if (!store.isPrefetching(ref) && shouldPrefetch(store.getInsertedAt(ref), expiresAt, now)) {
+            store.setPrefetching(ref);
+            prefetches++;
+            prefetcher.prefetch(key.toCacheKey());
+        }
+        return ref;
+    }
+
+    private boolean shouldPrefetch(long insertedAt, long expiresAt, long now) {
+        return prefetcher != null && (expiresAt - now) * 100 < (expiresAt - insertedAt) * prefetchPercent;
+    }
+
+    /**
+     * Caches an answer set for the question, sets with nothing in them or a zero TTL aren't kept
+     */
+    synchronized void put(DNSQuestion q, List<DNSResourceRecord> answers) {
+        if (answers.isEmpty())
+            return;
+        int minTtl = Integer.MAX_VALUE;
+        List<DNSResourceRecord> records = new ArrayList<DNSResourceRecord>(answers.size());
+        for (DNSResourceRecord rr : answers) {
+            minTtl = Math.min(minTtl, rr.getTtl());
+            records.add(copyWithTtl(rr, rr.getTtl()));
+        }
+        if (minTtl <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(records, now, now + minTtl * 1000L);
+        if (store != null)
+            store.put(new CacheKey(q), entry.insertedAt, entry.expiresAt, entry.wire);
+        else
+            entries.put(new CacheKey(q), entry);
+    }
+
+    /**
+     * Puts back an entry from a snapshot, unless it has run out for good since
+     *
+     * @return true if it was kept
+     */
+    synchronized boolean restore(CacheKey key, Entry entry) {
+        if (System.currentTimeMillis() >= entry.expiresAt + maxStaleMs)
+            return false;
+        if (store != null)
+            return store.put(key, entry.insertedAt, entry.expiresAt, entry.wire);
+        entries.put(key, entry);
+        return true;
+    }
+
+    /**
+     * @return a copy of every entry, least recently used first
+     */
+    synchronized Map<CacheKey, Entry> snapshot() {
+        if (store == null)
+            return new LinkedHashMap<CacheKey, Entry>(entries);
+        final Map<CacheKey, Entry> copy = new LinkedHashMap<CacheKey, Entry>();
+        store.forEach(new SlabStore.Visitor() {
+            public void visit(CacheKey key, long insertedAt, long expiresAt, byte[] wire) {
+                copy.put(key, new Entry(wire, insertedAt, expiresAt));
+            }
+        });
+        return copy;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return (store != null) ? store.getEvictions() : evictions;
+    }
+
+    synchronized long getPrefetches() {
+        return prefetches;
+    }
+
+    synchronized long getStaleHits() {
+        return staleHits;
+    }
+
+    synchronized int size() {
+        return (store != null) ? store.size() : entries.size();
+    }
+
+    private static List<DNSResourceRecord> decode(byte[] wire) {
+        List<DNSResourceRecord> records = new ArrayList<DNSResourceRecord>();
+        ByteBuffer bb = ByteBuffer.wrap(wire);
+        while (bb.hasRemaining())
+            records.add(DNSResourceRecord.deserialize(bb));
+        return records;
+    }
+
+    static DNSResourceRecord copyWithTtl(DNSResourceRecord rr, int ttl) {
+        DNSResourceRecord copy = new DNSResourceRecord(rr.getName(), rr.getType(), rr.getData());
+        copy.setClass(rr.getCls());
+        copy.setTtl(ttl);
+        return copy;
+    }
+
+    static class Entry {
+        final long insertedAt;
+        final long expiresAt;
+
+        // the answers back to back in wire format, uncompressed so they can go anywhere in a message
+        final byte[] wire;
+        // set once a refresh has been asked for, so a hot entry only gets one. Guarded by the cache.
+        boolean prefetching;
+        // decoded from wire on first use when restored from a snapshot. Guarded by the cache.
+        private List<DNSResourceRecord> records;
+
+        Entry(List<DNSResourceRecord> records, long insertedAt, long expiresAt) {
+            this(serialize(records), insertedAt, expiresAt);
+            this.records = records;
+        }
+
+        /**
+         * @param wire uncompressed records back to back, as they are kept in wire
+         */
+        Entry(byte[] wire, long insertedAt, long expiresAt) {
+            this.wire = wire;
+            this.insertedAt = insertedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        List<DNSResourceRecord> records() {
+            if (records == null)
+                records = decode(wire);
+            return records;
+        }
+
+        private static byte[] serialize(List<DNSResourceRecord> records) {
+            int length = 0;
+            for (DNSResourceRecord rr : records)
+                length += rr.getLength();
+            ByteBuffer bb = ByteBuffer.allocate(length);
+            for (DNSResourceRecord rr : records)
+                bb.put(rr.serialize());
+            return bb.array();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pool of reusable direct buffers, so the packet path doesn't allocate one per datagram.
+ *
+ * The pool grows on demand when it runs dry and never shrinks, it settles at however many buffers are in
+ * flight at once.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final ConcurrentLinkedQueue<ByteBuffer> free;
+
+    BufferPool(int bufferSize, int preallocate) {
+        this.bufferSize = bufferSize;
+        this.free = new ConcurrentLinkedQueue<ByteBuffer>();
+        for (int i = 0; i < preallocate; i++)
+            free.offer(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    /**
+     * @return a cleared buffer, hand it back with release when done
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buf = free.poll();
+        return (buf != null) ? buf : ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(ByteBuffer buf) {
+        buf.clear();
+        free.offer(buf);
+    }
+}
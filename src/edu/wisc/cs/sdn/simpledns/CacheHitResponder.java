@@ -0,0 +1,173 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSView;
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Answers positive cache hits wire to wire: the query is read in place with a DNSView and the reply is written
+ * into the caller's buffer from the cached entry's pre-serialized answers, with the TTLs patched and the EC2 TXT
+ * records written straight in. No DNS objects are built on this path, and the cache is searched with a QuestionKey
+ * over the question where it lies, so a hit doesn't allocate at all. A client that sent an OPT record gets ours
+ * back, and a reply too big for the client goes down the slow path to be truncated, see wasTooBig.
+ *
+ * Holds its view and writer between calls, so use one per thread.
+ */
+class CacheHitResponder {
+    private static final int OPT_LENGTH = 11;
+
+    private final SimpleDNS.ServerArgs serverArgs;
+    private final DNSView view;
+    private final DNSWriter writer;
+    private final QuestionKey key;
+    private short answeredType;
+    private boolean tooBig;
+
+    CacheHitResponder(SimpleDNS.ServerArgs serverArgs) {
+        this.serverArgs = serverArgs;
+        this.view = new DNSView();
+        this.writer = new DNSWriter();
+        this.key = new QuestionKey();
+    }
+
+    /**
+     * @param rx the query, starting at index 0
+     * @param tx where the reply goes, from its current position
+     * @return true if the reply was written, false if the query has to take the slow path
+     */
+    boolean respond(ByteBuffer rx, ByteBuffer tx) {
+        tooBig = false;
+        view.wrap(rx);
+        if (!view.isQuery() || view.getOpcode() != DNS.OPCODE_STANDARD_QUERY || !view.isRecursionDesired()
+                || view.getQuestionCount() != 1)
+            return false;
+        int nameEnd = view.skipName(DNSView.HEADER_LENGTH);
+        short qType = view.getType(nameEnd);
+        short qClass = view.getClass(nameEnd);
+        if (qType != DNS.TYPE_A && qType != DNS.TYPE_NS && qType != DNS.TYPE_CNAME && qType != DNS.TYPE_AAAA)
+            return false;
+
+        int clientSize = clientPayloadSize(nameEnd + 4);
+        key.wrap(rx, DNSView.HEADER_LENGTH, qType, qClass);
+
+        // writing past the limit means the reply is too big for the client
+        int limit = Math.min(Math.max(clientSize, DNS.MIN_UDP_PAYLOAD), serverArgs.ednsSize);
+        tx.limit(tx.position() + limit);
+        try {
+            if (!write(rx, tx, key, qType, nameEnd, clientSize >= 0))
+                return false;
+        } catch (BufferOverflowException e) {
+            // only ever after the answers were found, header and question always fit
+            tooBig = true;
+            return false;
+        }
+        answeredType = qType;
+        return true;
+    }
+
+    /**
+     * @return true if respond turned down the last query because its answer is cached but too big for the client.
+     * The hit has been counted already.
+     */
+    boolean wasTooBig() {
+        return tooBig;
+    }
+
+    /**
+     * @return the query type of the last query respond answered
+     */
+    short getAnsweredType() {
+        return answeredType;
+    }
+
+    /**
+     * @return false on a cache miss
+     */
+    private boolean write(ByteBuffer rx, ByteBuffer tx, LookupKey key, short qType, int nameEnd, boolean edns) {
+        int start = tx.position();
+        writer.wrap(tx).header(view.getId(), false, DNS.OPCODE_STANDARD_QUERY, false, false, true, true,
+                DNS.RCODE_NO_ERROR);
+        // copied as is, the question sits at the same offset in both messages so any pointer in it still works
+        int questionEnd = nameEnd + 4;
+        writer.put(rx, DNSView.HEADER_LENGTH, questionEnd - DNSView.HEADER_LENGTH).setQuestionCount(1);
+
+        int answersStart = start + writer.getLength();
+        long insertedAt = serverArgs.answerCache.writeAnswers(key, writer);
+        if (insertedAt < 0)
+            return false;
+        int answersEnd = start + writer.getLength();
+        int elapsed = (int) ((System.currentTimeMillis() - insertedAt) / 1000);
+        int answerCount = 0;
+        for (int record = answersStart; record < answersEnd; record = nextRecord(tx, record)) {
+            int ttl = skipName(tx, record) + 4;
+            tx.putInt(ttl, tx.getInt(ttl) - elapsed);
+            answerCount++;
+        }
+        if (qType == DNS.TYPE_A)
+            answerCount += appendEC2TextRecords(tx, answersStart, answersEnd, serverArgs.ec2Csv.texts());
+        writer.setAnswerCount(answerCount);
+
+        if (edns) {
+            writer.put((byte) 0).putShort(DNS.TYPE_OPT).putShort((short) serverArgs.ednsSize).putInt(0)
+                    .putShort((short) 0);
+            writer.setAdditionalCount(1);
+        }
+        return true;
+    }
+
+    /**
+     * Looks through the records after the question for an OPT record
+     *
+     * @return the payload size the client advertised, -1 if it didn't use EDNS0
+     */
+    private int clientPayloadSize(int offset) {
+        int records = view.getAnswerCount() + view.getAuthorityCount() + view.getAdditionalCount();
+        for (int i = 0; i < records; i++) {
+            int nameEnd = view.skipName(offset);
+            if (view.getType(nameEnd) == DNS.TYPE_OPT)
+                return view.getClass(nameEnd) & 0xffff;
+            offset = view.skipRecord(offset);
+        }
+        return -1;
+    }
+
+    /**
+     * Same records as SimpleDNS.appendEC2TextRecords, written straight from the answers already in tx
+     *
+     * @return how many records were added
+     */
+    private int appendEC2TextRecords(ByteBuffer tx, int answersStart, int answersEnd, Ec2TextCache texts) {
+        int added = 0;
+        for (int record = answersStart; record < answersEnd; record = nextRecord(tx, record)) {
+            int nameEnd = skipName(tx, record);
+            if (tx.getShort(nameEnd) != DNS.TYPE_A)
+                continue;
+            byte[] rdata = texts.get(tx.getInt(nameEnd + 10));
+            if (rdata == null)
+                continue;
+            writer.put(tx, record, nameEnd - record)
+                    .putShort(DNS.TYPE_TXT).putShort(DNS.CLASS_IN).putInt(0)
+                    .putShort((short) rdata.length)
+                    .put(rdata, 0, rdata.length);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * @return where the uncompressed name at offset ends, cached answers never use pointers
+     */
+    private static int skipName(ByteBuffer bb, int offset) {
+        while (bb.get(offset) != 0)
+            offset += 1 + (bb.get(offset) & 0xff);
+        return offset + 1;
+    }
+
+    private static int nextRecord(ByteBuffer bb, int offset) {
+        int rdLength = skipName(bb, offset) + 8;
+        return rdLength + 2 + (bb.getShort(rdLength) & 0xffff);
+    }
+}
@@ -0,0 +1,50 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+import java.nio.ByteBuffer;
+
+/**
+ * (name, type, class) key shared by the resolver caches. DNSName compares case-insensitively, like DNS does
+ */
+class CacheKey implements LookupKey {
+    final DNSName name;
+    final short type;
+    final short cls;
+
+    CacheKey(DNSName name, short type, short cls) {
+        this.name = name;
+        this.type = type;
+        this.cls = cls;
+    }
+
+    CacheKey(DNSQuestion q) {
+        this(q.getName(), q.getType(), q.getCls());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CacheKey))
+            return false;
+        CacheKey other = (CacheKey) o;
+        return type == other.type && cls == other.cls && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return (name.hashCode() * 31 + type) * 31 + cls;
+    }
+
+    @Override
+    public boolean matchesWire(ByteBuffer bb, int offset, int nameLength) {
+        if (nameLength != name.getWireLength() || !name.equalsWire(bb, offset))
+            return false;
+        return bb.getShort(offset + nameLength) == type && bb.getShort(offset + nameLength + 2) == cls;
+    }
+
+    @Override
+    public CacheKey toCacheKey() {
+        return this;
+    }
+}
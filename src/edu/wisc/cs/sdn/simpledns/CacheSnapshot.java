@@ -0,0 +1,268 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saves the answer, delegation and negative caches to a file and loads them back, so a restart comes up warm.
+ *
+ * The file is a header followed by one tagged record per entry, least recently used first so loading rebuilds the
+ * LRU order, and an end tag. Entries keep their absolute wall clock times, so whatever TTL they have left after a
+ * restart falls out of the time the server was down, and entries that ran out meanwhile are skipped. Answers are
+ * stored as the wire bytes the cache already keeps, so loading copies bytes and decodes nothing.
+ *
+ * Snapshots are written to a temporary file and renamed over the old one, a crash mid-write leaves the last good
+ * snapshot in place.
+ */
+class CacheSnapshot implements Runnable {
+    private static final Logger log = Logger.getLogger(CacheSnapshot.class.getName());
+
+    private static final int MAGIC = 0x53444e53;
+    private static final int VERSION = 1;
+
+    private static final byte END = 0;
+    private static final byte ANSWER = 1;
+    private static final byte DELEGATION = 2;
+    private static final byte NEGATIVE = 3;
+
+    // a record bigger than this gets a buffer of its own
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final Path path;
+    private final ShardedAnswerCache answerCache;
+    private final DelegationCache delegationCache;
+    private final NegativeCache negativeCache;
+    private final long intervalMs;
+
+    /**
+     * @param intervalMs time between periodic snapshots, 0 only saves on shutdown
+     */
+    CacheSnapshot(String filename, long intervalMs, ShardedAnswerCache answerCache, DelegationCache delegationCache,
+                  NegativeCache negativeCache) {
+        this.path = Paths.get(filename).toAbsolutePath();
+        this.intervalMs = intervalMs;
+        this.answerCache = answerCache;
+        this.delegationCache = delegationCache;
+        this.negativeCache = negativeCache;
+    }
+
+    /**
+     * Fills the caches from the snapshot, if there is one. A missing or unreadable snapshot leaves them empty.
+     */
+    void load() {
+        if (!Files.exists(path))
+            return;
+        long start = System.nanoTime();
+        int[] kept = new int[4];
+        int skipped = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (bb.getInt() != MAGIC || bb.getInt() != VERSION)
+                throw new IOException("not a cache snapshot");
+            long savedAt = bb.getLong();
+            byte tag;
+            while ((tag = bb.get()) != END) {
+                boolean restored;
+                if (tag == ANSWER)
+                    restored = loadAnswer(bb);
+                else if (tag == DELEGATION)
+                    restored = loadDelegation(bb);
+                else if (tag == NEGATIVE)
+                    restored = loadNegative(bb);
+                else
+                    throw new IOException("unknown record " + tag);
+                if (restored)
+                    kept[tag]++;
+                else
+                    skipped++;
+            }
+            log.info(String.format("Loaded %d answers, %d delegations and %d negative answers from %s in %.1f ms, "
+                            + "%d expired in the %d s since it was saved", kept[ANSWER], kept[DELEGATION],
+                    kept[NEGATIVE], path, (System.nanoTime() - start) / 1e6, skipped,
+                    (System.currentTimeMillis() - savedAt) / 1000));
+        } catch (IOException | RuntimeException e) {
+            // whatever got in before the damage is still good
+            log.log(Level.WARNING, "Cache snapshot " + path + " is unreadable, starting with what loaded: {0}",
+                    e.toString());
+        }
+    }
+
+    private boolean loadAnswer(ByteBuffer bb) {
+        CacheKey key = new CacheKey(readName(bb), bb.getShort(), bb.getShort());
+        long insertedAt = bb.getLong();
+        long expiresAt = bb.getLong();
+        byte[] wire = new byte[bb.getInt()];
+        bb.get(wire);
+        return answerCache.restore(key, new AnswerCache.Entry(wire, insertedAt, expiresAt));
+    }
+
+    private boolean loadDelegation(ByteBuffer bb) {
+        DNSName zone = readName(bb);
+        long expiresAt = bb.getLong();
+        int count = bb.getShort() & 0xffff;
+        List<String> servers = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] server = new byte[bb.get() & 0xff];
+            bb.get(server);
+            servers.add(new String(server, StandardCharsets.US_ASCII));
+        }
+        return delegationCache.restore(new DelegationCache.Delegation(zone, servers, expiresAt));
+    }
+
+    private boolean loadNegative(ByteBuffer bb) {
+        CacheKey key = new CacheKey(readName(bb), bb.getShort(), bb.getShort());
+        byte rcode = bb.get();
+        long insertedAt = bb.getLong();
+        long expiresAt = bb.getLong();
+        DNSResourceRecord soa = DNSResourceRecord.deserialize(bb);
+        return negativeCache.restore(key, new NegativeCache.Entry(rcode, soa, insertedAt, expiresAt));
+    }
+
+    /**
+     * Reads a name and moves past it. Names aren't interned here, a million trips through the pool would cost more
+     * than the rest of the load put together.
+     */
+    private static DNSName readName(ByteBuffer bb) {
+        DNSName name = DNSName.read(bb, bb.position());
+        bb.position(bb.position() + name.getWireLength());
+        return name;
+    }
+
+    /**
+     * Writes all three caches out and swaps the new snapshot in for the old one
+     */
+    void save() throws IOException {
+        long start = System.nanoTime();
+        Map<CacheKey, AnswerCache.Entry> answers = answerCache.snapshot();
+        List<DelegationCache.Delegation> delegations = delegationCache.snapshot();
+        Map<CacheKey, NegativeCache.Entry> negatives = negativeCache.snapshot();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.reserve(16).putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+            for (Map.Entry<CacheKey, AnswerCache.Entry> e : answers.entrySet()) {
+                CacheKey key = e.getKey();
+                AnswerCache.Entry entry = e.getValue();
+                byte[] name = key.name.toWire();
+                out.reserve(1 + name.length + 4 + 16 + 4 + entry.wire.length).put(ANSWER).put(name)
+                        .putShort(key.type).putShort(key.cls).putLong(entry.insertedAt).putLong(entry.expiresAt)
+                        .putInt(entry.wire.length).put(entry.wire);
+            }
+            for (DelegationCache.Delegation d : delegations) {
+                byte[] zone = d.zone.toWire();
+                List<byte[]> servers = new ArrayList<byte[]>(d.servers.size());
+                int length = 1 + zone.length + 8 + 2;
+                for (String server : d.servers) {
+                    byte[] bytes = server.getBytes(StandardCharsets.US_ASCII);
+                    servers.add(bytes);
+                    length += 1 + bytes.length;
+                }
+                ByteBuffer bb = out.reserve(length).put(DELEGATION).put(zone).putLong(d.expiresAt)
+                        .putShort((short) servers.size());
+                for (byte[] server : servers)
+                    bb.put((byte) server.length).put(server);
+            }
+            for (Map.Entry<CacheKey, NegativeCache.Entry> e : negatives.entrySet()) {
+                CacheKey key = e.getKey();
+                NegativeCache.Entry entry = e.getValue();
+                byte[] name = key.name.toWire();
+                byte[] soa = entry.soa.serialize();
+                out.reserve(1 + name.length + 4 + 1 + 16 + soa.length).put(NEGATIVE).put(name)
+                        .putShort(key.type).putShort(key.cls).put(entry.rcode).putLong(entry.insertedAt)
+                        .putLong(entry.expiresAt).put(soa);
+            }
+            out.reserve(1).put(END);
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.log(Level.FINE, "Saved {0} answers, {1} delegations and {2} negative answers in {3} ms",
+                new Object[]{answers.size(), delegations.size(), negatives.size(),
+                        (System.nanoTime() - start) / 1000000});
+    }
+
+    /**
+     * Saves every intervalMs on a daemon thread, and once more when the JVM shuts down
+     */
+    void start() {
+        Runtime.getRuntime().addShutdownHook(new Thread("cache-snapshot-shutdown") {
+            @Override
+            public void run() {
+                saveQuietly();
+            }
+        });
+        if (intervalMs <= 0)
+            return;
+        Thread t = new Thread(this, "cache-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(intervalMs);
+                saveQuietly();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void saveQuietly() {
+        try {
+            save();
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Cache snapshot to " + path + " failed: {0}", e.toString());
+        }
+    }
+
+    /**
+     * Appends to the channel through one direct buffer, written out whenever the next record doesn't fit
+     */
+    private static class Writer {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @return the buffer, with at least length bytes free
+         */
+        ByteBuffer reserve(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+                if (buffer.capacity() < length)
+                    buffer = ByteBuffer.allocate(length);
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of zone cuts learned from referrals.
+ *
+ * Each zone keeps the servers to ask for it: glue addresses from the additional section first, then the
+ * names of any nameservers that came without glue. Recursion starts at the deepest cached ancestor of a name.
+ *
+ * A server is only believed about its own zone (its bailiwick): the cuts it refers to must lie below that zone, and
+ * glue is only taken for nameservers inside it. Otherwise any server asked about its own names could replace the
+ * delegation of a parent such as com.
+ */
+class DelegationCache {
+    private final int capacity;
+    private final LinkedHashMap<DNSName, Delegation> zones;
+
+    DelegationCache(final int capacity) {
+        this.capacity = capacity;
+        this.zones = new LinkedHashMap<DNSName, Delegation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DNSName, Delegation> eldest) {
+                return size() > DelegationCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Remembers the zone cut in a referral. Only cuts strictly below the zone that was asked and at or above the
+     * name being resolved are trusted, so a server can't hand out delegations for somebody else's zone, nor refer
+     * back to its own.
+     *
+     * @param zone the zone the referring server was asked as an authority for, the root for a root server
+     * @return the deepest delegation in the referral, or null if it didn't contain a usable one
+     */
+    synchronized Delegation putReferral(DNSName zone, DNSName qname, DNS referral) {
+        Map<DNSName, List<DNSResourceRecord>> nsByZone = new LinkedHashMap<DNSName, List<DNSResourceRecord>>();
+        for (DNSResourceRecord rr : referral.getAuthorities()) {
+            if (!isUsableCut(zone, qname, rr))
+                continue;
+            DNSName cut = rr.getName();
+            if (!nsByZone.containsKey(cut))
+                nsByZone.put(cut, new ArrayList<DNSResourceRecord>());
+            nsByZone.get(cut).add(rr);
+        }
+
+        Delegation deepest = null;
+        for (Map.Entry<DNSName, List<DNSResourceRecord>> e : nsByZone.entrySet()) {
+            int minTtl = Integer.MAX_VALUE;
+            List<String> glued = new ArrayList<String>();
+            List<String> unglued = new ArrayList<String>();
+            for (DNSResourceRecord ns : e.getValue()) {
+                minTtl = Math.min(minTtl, ns.getTtl());
+                DNSName nsName = DNSName.of(ns.getData().toString());
+                boolean hasGlue = false;
+                // an address for a name outside the zone is for its own authority to give
+                boolean inBailiwick = nsName.isSubdomainOf(zone);
+                for (DNSResourceRecord ar : referral.getAdditional()) {
+                    if (inBailiwick && (ar.getType() == DNS.TYPE_A || ar.getType() == DNS.TYPE_AAAA)
+                            && ar.getName().equals(nsName)) {
+                        glued.add(ar.getData().toString());
+                        minTtl = Math.min(minTtl, ar.getTtl());
+                        hasGlue = true;
+                    }
+                }
+                if (!hasGlue)
+                    unglued.add(nsName.toString());
+            }
+            glued.addAll(unglued);
+            Delegation d = new Delegation(e.getKey(), glued, System.currentTimeMillis() + minTtl * 1000L);
+            // never cache a cut at the root, that's the starting point anyway
+            if (minTtl > 0 && d.zone.getLabelCount() > 0)
+                zones.put(e.getKey(), d);
+            if (deepest == null || d.zone.getLabelCount() > deepest.zone.getLabelCount())
+                deepest = d;
+        }
+        return deepest;
+    }
+
+    /**
+     * @return true if the reply refers the name down to a zone putReferral would take, whatever else it holds
+     */
+    static boolean isReferral(DNSName zone, DNSName qname, DNS reply) {
+        for (DNSResourceRecord rr : reply.getAuthorities()) {
+            if (isUsableCut(zone, qname, rr))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isUsableCut(DNSName zone, DNSName qname, DNSResourceRecord rr) {
+        DNSName cut = rr.getName();
+        return rr.getType() == DNS.TYPE_NS && qname.isSubdomainOf(cut) && cut.isSubdomainOf(zone)
+                && cut.getLabelCount() != zone.getLabelCount();
+    }
+
+    /**
+     * @return the deepest unexpired zone cut above (or at) the name, or null if only the root is known
+     */
+    synchronized Delegation findClosest(DNSName qname) {
+        long now = System.currentTimeMillis();
+        for (DNSName zone = qname; zone.getLabelCount() > 0; zone = zone.parent()) {
+            Delegation d = zones.get(zone);
+            if (d != null) {
+                if (now < d.expiresAt)
+                    return d;
+                zones.remove(zone);
+            }
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        return zones.size();
+    }
+
+    /**
+     * Puts back a zone cut from a snapshot, unless it has expired since
+     *
+     * @return true if it was kept
+     */
+    synchronized boolean restore(Delegation d) {
+        if (System.currentTimeMillis() >= d.expiresAt)
+            return false;
+        zones.put(d.zone, d);
+        return true;
+    }
+
+    /**
+     * @return a copy of every zone cut, least recently used first
+     */
+    synchronized List<Delegation> snapshot() {
+        return new ArrayList<Delegation>(zones.values());
+    }
+
+    static class Delegation {
+        final DNSName zone;
+        final List<String> servers;
+        final long expiresAt;
+
+        Delegation(DNSName zone, List<String> servers, long expiresAt) {
+            this.zone = zone;
+            this.servers = servers;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
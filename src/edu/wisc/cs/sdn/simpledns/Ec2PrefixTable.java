@@ -0,0 +1,120 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * IPv4 longest-prefix-match table for the EC2 ranges.
+ *
+ * A plain binary trie kept in parallel int arrays, one bit per level, so a lookup is at most 32 array reads and
+ * never allocates. A prefix only matches addresses that agree with it on all of its own mask bits.
+ */
+class Ec2PrefixTable {
+    private static final int NONE = -1;
+
+    // children and the index into values of the prefix ending at each node, node 0 is the root
+    private int[] zero;
+    private int[] one;
+    private int[] valueAt;
+    private int nodeCount;
+
+    private SimpleDNS.Ec2Val[] values;
+    private int valueCount;
+
+    Ec2PrefixTable() {
+        this.zero = new int[64];
+        this.one = new int[64];
+        this.valueAt = new int[64];
+        this.values = new SimpleDNS.Ec2Val[16];
+        this.nodeCount = 1;
+        zero[0] = NONE;
+        one[0] = NONE;
+        valueAt[0] = NONE;
+    }
+
+    /**
+     * Reads a csv of <address>/<mask>,<location> rows
+     */
+    static Ec2PrefixTable load(String ec2Filename) throws IOException {
+        Ec2PrefixTable table = new Ec2PrefixTable();
+        BufferedReader csvReader = new BufferedReader(new FileReader(ec2Filename));
+        try {
+            String row;
+            while ((row = csvReader.readLine()) != null) {
+                String[] dataComma = row.split(",");
+                if (dataComma.length != 2)
+                    throw new RuntimeException("Improperly formed csv");
+                String[] dataSlash = dataComma[0].split("/");
+                int mask = Integer.parseInt(dataSlash[1]);
+                table.put(SimpleDNS.toIPv4Address(dataSlash[0]), mask, new SimpleDNS.Ec2Val(mask, dataComma[1]));
+            }
+        } finally {
+            csvReader.close();
+        }
+        return table;
+    }
+
+    /**
+     * Adds a prefix, bits of the address past the mask are ignored. Re-adding a prefix replaces its value.
+     */
+    void put(int address, int mask, SimpleDNS.Ec2Val val) {
+        if (mask < 0 || mask > 32)
+            throw new IllegalArgumentException("Prefix length must be between 0 and 32");
+        int node = 0;
+        for (int depth = 0; depth < mask; depth++) {
+            boolean bit = ((address >>> (31 - depth)) & 1) == 1;
+            int next = bit ? one[node] : zero[node];
+            if (next == NONE) {
+                next = newNode();
+                if (bit)
+                    one[node] = next;
+                else
+                    zero[node] = next;
+            }
+            node = next;
+        }
+        if (valueAt[node] == NONE) {
+            if (valueCount == values.length)
+                values = Arrays.copyOf(values, valueCount * 2);
+            valueAt[node] = valueCount++;
+        }
+        values[valueAt[node]] = val;
+    }
+
+    /**
+     * @return the value of the longest prefix covering the address, or null if none does
+     */
+    SimpleDNS.Ec2Val lookup(int address) {
+        int best = valueAt[0];
+        int node = 0;
+        for (int depth = 0; depth < 32; depth++) {
+            node = (((address >>> (31 - depth)) & 1) == 1) ? one[node] : zero[node];
+            if (node == NONE)
+                break;
+            if (valueAt[node] != NONE)
+                best = valueAt[node];
+        }
+        return (best == NONE) ? null : values[best];
+    }
+
+    /**
+     * @return the number of distinct prefixes in the table
+     */
+    int size() {
+        return valueCount;
+    }
+
+    private int newNode() {
+        if (nodeCount == zero.length) {
+            zero = Arrays.copyOf(zero, nodeCount * 2);
+            one = Arrays.copyOf(one, nodeCount * 2);
+            valueAt = Arrays.copyOf(valueAt, nodeCount * 2);
+        }
+        zero[nodeCount] = NONE;
+        one[nodeCount] = NONE;
+        valueAt[nodeCount] = NONE;
+        return nodeCount++;
+    }
+}
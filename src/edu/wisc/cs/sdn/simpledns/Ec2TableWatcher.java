@@ -0,0 +1,94 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the live EC2 prefix table and rebuilds it whenever the csv changes on disk.
+ *
+ * Reloads happen on the watcher's own thread, the finished table is published with a single reference swap,
+ * so lookups never wait on a reload or see a half-built table. A csv that fails to parse leaves the old table live.
+ * Replace the csv by renaming a finished file over it, a file rewritten in place can be read half-written.
+ *
+ * Every table is published together with a fresh Ec2TextCache for it, so annotations memoized against the old
+ * table go away with it.
+ */
+class Ec2TableWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger(Ec2TableWatcher.class.getName());
+
+    private final Path csvPath;
+    private final AtomicReference<Ec2TextCache> texts;
+
+    Ec2TableWatcher(String ec2Filename) throws IOException {
+        this.csvPath = Paths.get(ec2Filename).toAbsolutePath();
+        this.texts = new AtomicReference<Ec2TextCache>();
+        reload();
+    }
+
+    /**
+     * @return the most recently loaded table, callers should hold on to it for the whole of one response
+     */
+    Ec2PrefixTable current() {
+        return texts.get().getTable();
+    }
+
+    /**
+     * @return the TXT record cache for the most recently loaded table, callers should hold on to it for the whole of
+     * one response
+     */
+    Ec2TextCache texts() {
+        return texts.get();
+    }
+
+    /**
+     * Builds a new table from the csv and swaps it in
+     */
+    void reload() throws IOException {
+        long start = System.nanoTime();
+        Ec2PrefixTable loaded = Ec2PrefixTable.load(csvPath.toString());
+        texts.set(new Ec2TextCache(loaded));
+        log.info(String.format("Loaded %d EC2 prefixes from %s in %.1f ms", loaded.size(), csvPath,
+                (System.nanoTime() - start) / 1e6));
+    }
+
+    /**
+     * Starts watching the csv on a daemon thread
+     */
+    void start() {
+        Thread t = new Thread(this, "ec2-table-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void run() {
+        try {
+            WatchService watcher = FileSystems.getDefault().newWatchService();
+            // files get replaced as often as they get rewritten, so watch the directory rather than the file
+            csvPath.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (csvPath.getFileName().equals(event.context()))
+                        changed = true;
+                }
+                key.reset();
+                if (!changed)
+                    continue;
+                try {
+                    reload();
+                } catch (IOException | RuntimeException e) {
+                    log.log(Level.WARNING, "EC2 reload failed, keeping the old table: {0}", e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.log(Level.SEVERE, "Stopped watching " + csvPath, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
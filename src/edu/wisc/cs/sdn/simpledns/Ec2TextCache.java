@@ -0,0 +1,69 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Remembers the EC2 TXT record data of recently annotated IPv4 addresses, already in wire form, so annotating an
+ * address that was seen before is a byte copy instead of a prefix search and a string to format. Addresses that
+ * aren't in EC2 are remembered too, as those still cost a full search.
+ *
+ * Direct mapped: every address has exactly one slot and another address landing there replaces it, so the cache is
+ * bounded without any eviction bookkeeping and lookups take no lock. Slots hold immutable Text objects, so a reader
+ * racing a writer sees either the old one or the new one. Each cache answers for one table only, the table watcher
+ * starts a new one with every reload.
+ */
+class Ec2TextCache {
+    private static final int SLOT_BITS = 14;
+
+    private static final class Text {
+        final int address;
+        // null if the address isn't in EC2
+        final byte[] rdata;
+
+        Text(int address, byte[] rdata) {
+            this.address = address;
+            this.rdata = rdata;
+        }
+    }
+
+    private final Ec2PrefixTable table;
+    private final Text[] slots = new Text[1 << SLOT_BITS];
+
+    Ec2TextCache(Ec2PrefixTable table) {
+        this.table = table;
+    }
+
+    Ec2PrefixTable getTable() {
+        return table;
+    }
+
+    /**
+     * @return the TXT record data for the address, its length byte then location-a.b.c.d, or null if the address
+     * isn't in EC2. Callers must not change it.
+     */
+    byte[] get(int address) {
+        int slot = (address * 0x9e3779b9) >>> (32 - SLOT_BITS);
+        Text text = slots[slot];
+        if (text == null || text.address != address) {
+            text = new Text(address, format(address));
+            slots[slot] = text;
+        }
+        return text.rdata;
+    }
+
+    private byte[] format(int address) {
+        SimpleDNS.Ec2Val val = table.lookup(address);
+        if (val == null)
+            return null;
+        int textLength = val.locationBytes.length + 1 + DNSWriter.dottedQuadLength(address);
+        byte[] rdata = new byte[textLength + 1];
+        new DNSWriter().wrap(ByteBuffer.wrap(rdata))
+                .put((byte) textLength)
+                .put(val.locationBytes, 0, val.locationBytes.length)
+                .put((byte) '-')
+                .putDottedQuad(address);
+        return rdata;
+    }
+}
@@ -0,0 +1,172 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One hop of a resolution sent to several of a zone's servers in a staggered race ("happy eyeballs").
+ *
+ * The best ranked server is asked first. Whenever the hedge delay passes without a usable reply, or a server times
+ * out or gives an unusable one, the next server is asked too. The first usable reply wins and every other query
+ * still in flight is cancelled. Usable means the resolution can go on from it: an answer, a negative answer, or a
+ * referral down from the zone the servers were asked for. A lame server's SERVFAIL, REFUSED, upward referral or
+ * empty NOERROR only brings the next server in, the same as the one-at-a-time loop moving on. A truncated reply is
+ * asked again over TCP before it is judged. Servers are plain address strings, so A and AAAA glue race the same way.
+ */
+class HedgedQuery {
+    private static final Logger log = Logger.getLogger(HedgedQuery.class.getName());
+
+    private final DNSQuestion question;
+    private final DNSName zone;
+    private final DNS originalDns;
+    private final int dnsPort;
+    private final SimpleDNS.ServerArgs serverArgs;
+
+    private final LinkedBlockingQueue<Sent> replies;
+    private final List<Sent> inFlight;
+
+    /**
+     * @param zone the zone the servers are asked as an authority for
+     */
+    HedgedQuery(DNSQuestion question, DNSName zone, DNS originalDns, int dnsPort, SimpleDNS.ServerArgs serverArgs) {
+        this.question = question;
+        this.zone = zone;
+        this.originalDns = originalDns;
+        this.dnsPort = dnsPort;
+        this.serverArgs = serverArgs;
+        this.replies = new LinkedBlockingQueue<Sent>();
+        this.inFlight = new ArrayList<Sent>();
+    }
+
+    /**
+     * @param ranked the zone's servers, best first
+     * @return the first usable reply
+     * @throws SocketTimeoutException if no server gave a usable reply in time
+     * @throws IllegalStateException if every server replied but none of them usefully, asking again won't help
+     */
+    DNS race(List<String> ranked) throws IOException {
+        int next = 0;
+        boolean timedOut = false;
+        long nextHedgeAt = System.nanoTime();
+        try {
+            while (true) {
+                long now = System.nanoTime();
+                if (next < ranked.size() && (now >= nextHedgeAt || inFlight.isEmpty())) {
+                    send(ranked.get(next++));
+                    nextHedgeAt = now + TimeUnit.MILLISECONDS.toNanos(serverArgs.hedgeDelayMs);
+                    continue;
+                }
+                if (inFlight.isEmpty()) {
+                    if (!timedOut)
+                        throw new IllegalStateException("No usable reply from any of " + ranked);
+                    throw new SocketTimeoutException("No usable reply from any of " + ranked);
+                }
+
+                long wakeAt = (next < ranked.size()) ? nextHedgeAt : Long.MAX_VALUE;
+                for (Sent s : inFlight)
+                    wakeAt = Math.min(wakeAt, s.deadline);
+                Sent done = replies.poll(Math.max(0, wakeAt - now), TimeUnit.NANOSECONDS);
+
+                if (done != null) {
+                    // cancelled queries report in here too, they were already dealt with
+                    if (!inFlight.remove(done) || done.future.isCompletedExceptionally())
+                        continue;
+                    DNS dns = done.future.getNow(null);
+                    long took = System.nanoTime() - done.sentAt;
+                    serverArgs.rtt.responded(done.server, took / 1e6);
+                    serverArgs.metrics.udpUpstreamLatency.record(took);
+                    try {
+                        // a truncated reply has to be completed before there is anything to judge
+                        dns = SimpleDNS.completeTruncated(dns, question, originalDns, done.server, dnsPort,
+                                serverArgs);
+                    } catch (SocketTimeoutException e) {
+                        log.fine(e.getMessage());
+                        nextHedgeAt = System.nanoTime();
+                        timedOut = true;
+                        continue;
+                    }
+                    if (isUsable(dns))
+                        return dns;
+                    log.log(Level.FINE, "Unusable reply from {0}, asking the next server", done.server);
+                    // a broken server is as good as a slow one, bring the next one in now
+                    nextHedgeAt = System.nanoTime();
+                    continue;
+                }
+                now = System.nanoTime();
+                for (Sent s : new ArrayList<Sent>(inFlight)) {
+                    if (now >= s.deadline) {
+                        inFlight.remove(s);
+                        serverArgs.upstream.cancel(s.future);
+                        serverArgs.rtt.timedOut(s.server);
+                        serverArgs.metrics.upstreamTimedOut();
+                        log.log(Level.FINE, "No reply from {0} within {1} ms", new Object[]{s.server, s.timeoutMs});
+                        nextHedgeAt = now;
+                        timedOut = true;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + ranked);
+        } finally {
+            for (Sent s : inFlight)
+                serverArgs.upstream.cancel(s.future);
+        }
+    }
+
+    private void send(String server) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(server), dnsPort);
+        int timeoutMs = serverArgs.rtt.timeoutFor(server);
+        long sentAt = System.nanoTime();
+        CompletableFuture<DNS> future = serverArgs.upstream.query(
+                SimpleDNS.generateDNSForRequest(question, originalDns), address);
+        final Sent sent = new Sent(server, future, sentAt, timeoutMs);
+        inFlight.add(sent);
+        future.whenComplete(new BiConsumer<DNS, Throwable>() {
+            public void accept(DNS dns, Throwable t) {
+                replies.offer(sent);
+            }
+        });
+    }
+
+    /**
+     * @return true if SimpleDNS.followResponse can carry on from the reply
+     */
+    private boolean isUsable(DNS dns) {
+        if (dns.getRcode() != DNS.RCODE_NO_ERROR && dns.getRcode() != DNS.RCODE_NAME_ERROR)
+            return false;
+        return !dns.getAnswers().isEmpty() || NegativeCache.isNegative(dns)
+                || DelegationCache.isReferral(zone, question.getName(), dns);
+    }
+
+    private static class Sent {
+        final String server;
+        final CompletableFuture<DNS> future;
+        final long sentAt;
+        final int timeoutMs;
+        final long deadline;
+
+        Sent(String server, CompletableFuture<DNS> future, long sentAt, int timeoutMs) {
+            this.server = server;
+            this.future = future;
+            this.sentAt = sentAt;
+            this.timeoutMs = timeoutMs;
+            this.deadline = sentAt + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        }
+    }
+}
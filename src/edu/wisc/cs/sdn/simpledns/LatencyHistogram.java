@@ -0,0 +1,84 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with log-linear buckets in the style of HdrHistogram.
+ *
+ * Values are kept in microseconds. Below 32 us every value has its own bucket, above that every power of two is split
+ * into 16 buckets, so a quantile read back is within about 6% of the real value anywhere from a microsecond up to
+ * hours. Recording is an array index and two atomic adds, cheap enough for every query. Quantiles are read from the
+ * live counts, so a read while queries are being recorded is a close approximation rather than an exact snapshot.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    // 2^36 us is about 19 hours, anything longer is lumped in with it
+    private static final long MAX_VALUE = (1L << 36) - 1;
+
+    private final AtomicLongArray counts;
+    private final LongAdder count;
+    private final LongAdder sumMicros;
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_VALUE) + 1);
+        this.count = new LongAdder();
+        this.sumMicros = new LongAdder();
+    }
+
+    /**
+     * @param nanos a duration from System.nanoTime differences
+     */
+    void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(micros));
+        count.increment();
+        sumMicros.add(micros);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    double getSumSeconds() {
+        return sumMicros.sum() / 1e6;
+    }
+
+    /**
+     * @param q between 0 and 1
+     * @return the highest value of the bucket the quantile falls in, in seconds, 0 if nothing was recorded
+     */
+    double quantileSeconds(double q) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return highestValueOf(i) / 1e6;
+        }
+        return highestValueOf(counts.length() - 1) / 1e6;
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LINEAR_LIMIT)
+            return (int) micros;
+        // the top SUB_BUCKET_BITS + 1 bits of the value pick the bucket within its power of two
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < LINEAR_LIMIT)
+            return index;
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long top = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
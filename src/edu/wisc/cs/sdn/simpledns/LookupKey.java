@@ -0,0 +1,27 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * What the answer cache needs to find an entry: a (name, type, class) that hashes like the CacheKey it was stored
+ * under and can be compared with the copy of that key kept off heap. CacheKey is one, QuestionKey is the question
+ * of a query still in its receive buffer.
+ */
+interface LookupKey {
+    /**
+     * @return the same hash as the CacheKey for this (name, type, class)
+     */
+    int hashCode();
+
+    /**
+     * @param offset where an uncompressed name starts, followed by its type and class
+     * @param nameLength how long that name is on the wire
+     * @return true if they are this key
+     */
+    boolean matchesWire(ByteBuffer bb, int offset, int nameLength);
+
+    /**
+     * @return a CacheKey that owns its own name, for keys that outlive the lookup
+     */
+    CacheKey toCacheKey();
+}
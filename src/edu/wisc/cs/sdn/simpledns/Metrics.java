@@ -0,0 +1,157 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for everything the server answers and everything it asks upstream.
+ *
+ * The front ends report every reply they send with how long it took since the query came in, and the resolver reports
+ * every upstream round trip. All of it is striped adders and atomic arrays, so recording never takes a lock. The
+ * cache counters live with the caches themselves and are read from there when the metrics are rendered.
+ */
+class Metrics {
+    private final LongAdder queries;
+    private final LongAdder dropped;
+    private final ConcurrentHashMap<Short, LongAdder> byType;
+    private final AtomicLongArray byRcode;
+    private final LongAdder upstreamTimeouts;
+    final LatencyHistogram requestLatency;
+    final LatencyHistogram udpUpstreamLatency;
+    final LatencyHistogram tcpUpstreamLatency;
+
+    // queries per second over the last sample, updated by sample()
+    private volatile double qps;
+    private long lastSampleQueries;
+    private long lastSampleAt;
+
+    Metrics() {
+        this.queries = new LongAdder();
+        this.dropped = new LongAdder();
+        this.byType = new ConcurrentHashMap<Short, LongAdder>();
+        this.byRcode = new AtomicLongArray(16);
+        this.upstreamTimeouts = new LongAdder();
+        this.requestLatency = new LatencyHistogram();
+        this.udpUpstreamLatency = new LatencyHistogram();
+        this.tcpUpstreamLatency = new LatencyHistogram();
+        this.lastSampleAt = System.nanoTime();
+    }
+
+    /**
+     * A reply went out to a client
+     *
+     * @param receivedAt System.nanoTime when the query came in
+     */
+    void answered(short qType, byte rcode, long receivedAt) {
+        requestLatency.record(System.nanoTime() - receivedAt);
+        queries.increment();
+        LongAdder counter = byType.get(qType);
+        if (counter == null) {
+            LongAdder fresh = new LongAdder();
+            counter = byType.putIfAbsent(qType, fresh);
+            if (counter == null)
+                counter = fresh;
+        }
+        counter.increment();
+        byRcode.incrementAndGet(rcode & 0xf);
+    }
+
+    /**
+     * @param query the client's query, its first question gives the type
+     */
+    void answered(DNS query, DNS reply, long receivedAt) {
+        short qType = query.getQuestions().isEmpty() ? 0 : query.getQuestions().get(0).getType();
+        answered(qType, reply.getRcode(), receivedAt);
+    }
+
+    /**
+     * A query was given up on without a reply
+     */
+    void dropped() {
+        queries.increment();
+        dropped.increment();
+    }
+
+    void upstreamTimedOut() {
+        upstreamTimeouts.increment();
+    }
+
+    /**
+     * Works out the query rate since the previous call, meant to be called once a second
+     */
+    synchronized void sample() {
+        long now = System.nanoTime();
+        long total = queries.sum();
+        if (now > lastSampleAt)
+            qps = (total - lastSampleQueries) / ((now - lastSampleAt) / 1e9);
+        lastSampleQueries = total;
+        lastSampleAt = now;
+    }
+
+    double getQps() {
+        return qps;
+    }
+
+    long getQueries() {
+        return queries.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getUpstreamTimeouts() {
+        return upstreamTimeouts.sum();
+    }
+
+    Map<Short, LongAdder> getByType() {
+        return byType;
+    }
+
+    long getRcodeCount(int rcode) {
+        return byRcode.get(rcode);
+    }
+
+    static String typeName(short type) {
+        switch (type) {
+            case DNS.TYPE_A:
+                return "A";
+            case DNS.TYPE_NS:
+                return "NS";
+            case DNS.TYPE_CNAME:
+                return "CNAME";
+            case DNS.TYPE_SOA:
+                return "SOA";
+            case DNS.TYPE_TXT:
+                return "TXT";
+            case DNS.TYPE_AAAA:
+                return "AAAA";
+            default:
+                // RFC 3597 spelling for everything else
+                return "TYPE" + (type & 0xffff);
+        }
+    }
+
+    static String rcodeName(int rcode) {
+        switch (rcode) {
+            case DNS.RCODE_NO_ERROR:
+                return "NOERROR";
+            case DNS.RCODE_FORMAT_ERROR:
+                return "FORMERR";
+            case DNS.RCODE_SERVER_FAILURE:
+                return "SERVFAIL";
+            case DNS.RCODE_NAME_ERROR:
+                return "NXDOMAIN";
+            case DNS.RCODE_NOT_IMPLEMENTED:
+                return "NOTIMP";
+            case DNS.RCODE_REFUSED:
+                return "REFUSED";
+            default:
+                return "RCODE" + rcode;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the metrics in the Prometheus text format at /metrics.
+ *
+ * Uses the HTTP server that ships with the JDK, bound to the loopback address only, on a single thread of its own so
+ * a scrape never competes with the resolver's threads for more than that. Latencies are rendered as summaries with
+ * a few fixed quantiles read off the histograms.
+ */
+class MetricsServer implements HttpHandler {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final int port;
+    private final SimpleDNS.ServerArgs serverArgs;
+
+    MetricsServer(int port, SimpleDNS.ServerArgs serverArgs) {
+        this.port = port;
+        this.serverArgs = serverArgs;
+    }
+
+    /**
+     * Binds the listener and starts the once a second query rate sampler
+     */
+    void start() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this);
+        server.start();
+        Thread sampler = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    serverArgs.metrics.sample();
+                }
+            }
+        }, "metrics-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+    }
+
+    String render() {
+        Metrics metrics = serverArgs.metrics;
+        ShardedAnswerCache cache = serverArgs.answerCache;
+        StringBuilder sb = new StringBuilder(4096);
+
+        header(sb, "simpledns_queries_total", "counter", "Client queries, answered or dropped");
+        sample(sb, "simpledns_queries_total", "", metrics.getQueries());
+        header(sb, "simpledns_queries_per_second", "gauge", "Client queries over the last second");
+        sample(sb, "simpledns_queries_per_second", "", metrics.getQps());
+        header(sb, "simpledns_dropped_queries_total", "counter", "Client queries given up on without a reply");
+        sample(sb, "simpledns_dropped_queries_total", "", metrics.getDropped());
+
+        header(sb, "simpledns_answers_by_type_total", "counter", "Replies sent, by query type");
+        for (Map.Entry<Short, LongAdder> e : metrics.getByType().entrySet())
+            sample(sb, "simpledns_answers_by_type_total", "qtype=\"" + Metrics.typeName(e.getKey()) + "\"",
+                    e.getValue().sum());
+        header(sb, "simpledns_answers_by_rcode_total", "counter", "Replies sent, by response code");
+        for (int rcode = 0; rcode < 16; rcode++) {
+            long count = metrics.getRcodeCount(rcode);
+            if (count > 0)
+                sample(sb, "simpledns_answers_by_rcode_total", "rcode=\"" + Metrics.rcodeName(rcode) + "\"", count);
+        }
+
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        header(sb, "simpledns_cache_hits_total", "counter", "Answer cache lookups that found an entry");
+        sample(sb, "simpledns_cache_hits_total", "", hits);
+        header(sb, "simpledns_cache_misses_total", "counter", "Answer cache lookups that found nothing");
+        sample(sb, "simpledns_cache_misses_total", "", misses);
+        header(sb, "simpledns_cache_hit_ratio", "gauge", "Answer cache hits over all lookups since start");
+        sample(sb, "simpledns_cache_hit_ratio", "", (hits + misses == 0) ? 0 : (double) hits / (hits + misses));
+        header(sb, "simpledns_cache_evictions_total", "counter", "Answer cache entries evicted to make room");
+        sample(sb, "simpledns_cache_evictions_total", "", cache.getEvictions());
+        header(sb, "simpledns_cache_prefetches_total", "counter", "Answer cache entries refreshed before expiring");
+        sample(sb, "simpledns_cache_prefetches_total", "", cache.getPrefetches());
+        header(sb, "simpledns_cache_shard_entries", "gauge", "Answer cache entries, by shard");
+        for (int i = 0; i < cache.getShardCount(); i++)
+            sample(sb, "simpledns_cache_shard_entries", "shard=\"" + i + "\"", cache.getShard(i).size());
+        header(sb, "simpledns_cache_shard_hits_total", "counter", "Answer cache lookups that found an entry, by shard");
+        for (int i = 0; i < cache.getShardCount(); i++)
+            sample(sb, "simpledns_cache_shard_hits_total", "shard=\"" + i + "\"", cache.getShard(i).getHits());
+        header(sb, "simpledns_cache_shard_misses_total", "counter",
+                "Answer cache lookups that found nothing, by shard");
+        for (int i = 0; i < cache.getShardCount(); i++)
+            sample(sb, "simpledns_cache_shard_misses_total", "shard=\"" + i + "\"", cache.getShard(i).getMisses());
+        header(sb, "simpledns_cache_shard_evictions_total", "counter", "Answer cache entries evicted, by shard");
+        for (int i = 0; i < cache.getShardCount(); i++)
+            sample(sb, "simpledns_cache_shard_evictions_total", "shard=\"" + i + "\"",
+                    cache.getShard(i).getEvictions());
+        header(sb, "simpledns_stale_answers_total", "counter", "Expired answers served because upstream failed");
+        sample(sb, "simpledns_stale_answers_total", "", cache.getStaleHits());
+        header(sb, "simpledns_coalesced_lookups_total", "counter", "Lookups that waited on an identical one");
+        sample(sb, "simpledns_coalesced_lookups_total", "", serverArgs.singleFlight.getCoalesced());
+        header(sb, "simpledns_upstream_timeouts_total", "counter", "Upstream queries that got no reply in time");
+        sample(sb, "simpledns_upstream_timeouts_total", "", metrics.getUpstreamTimeouts());
+
+        header(sb, "simpledns_request_duration_seconds", "summary", "Time from receiving a query to replying");
+        summary(sb, "simpledns_request_duration_seconds", "", metrics.requestLatency);
+        header(sb, "simpledns_upstream_duration_seconds", "summary", "Round trip of one upstream query");
+        summary(sb, "simpledns_upstream_duration_seconds", "transport=\"udp\"", metrics.udpUpstreamLatency);
+        summary(sb, "simpledns_upstream_duration_seconds", "transport=\"tcp\"", metrics.tcpUpstreamLatency);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(name);
+        if (!labels.isEmpty())
+            sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (!labels.isEmpty())
+            sb.append('{').append(labels).append('}');
+        sb.append(' ').append(String.format(Locale.ROOT, "%.6g", value)).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (double q : QUANTILES)
+            sample(sb, name, prefix + "quantile=\"" + q + "\"", histogram.quantileSeconds(q));
+        sample(sb, name + "_sum", labels, histogram.getSumSeconds());
+        sample(sb, name + "_count", labels, histogram.getCount());
+    }
+}
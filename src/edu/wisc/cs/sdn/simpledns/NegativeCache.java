@@ -0,0 +1,169 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+import edu.wisc.cs.sdn.simpledns.packet.DNSRdataName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSRdataSOA;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of NXDOMAIN and NODATA responses (RFC 2308).
+ *
+ * A negative answer is kept for the smaller of the SOA record's TTL and its minimum field, and responses without
+ * an SOA in the authority section aren't cached at all. NXDOMAIN covers every type of a name, so it is stored
+ * under a wildcard type, NODATA only covers the type that was asked for.
+ *
+ * When the answers hold a CNAME chain the response code is about where the chain ends (RFC 6604), so that is the
+ * name the entry is stored under. The alias itself exists and gets nothing cached here.
+ */
+class NegativeCache {
+    private static final short ANY_TYPE = 0;
+
+    private final int capacity;
+    private final LinkedHashMap<CacheKey, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    NegativeCache(final int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Entry> eldest) {
+                return size() > NegativeCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if the response says the name or the type doesn't exist, as opposed to being a referral
+     */
+    static boolean isNegative(DNS response) {
+        if (response.getRcode() == DNS.RCODE_NAME_ERROR)
+            return true;
+        if (!response.getAnswers().isEmpty())
+            return false;
+        boolean hasSoa = false;
+        for (DNSResourceRecord rr : response.getAuthorities()) {
+            if (rr.getType() == DNS.TYPE_NS)
+                return false;
+            if (rr.getType() == DNS.TYPE_SOA)
+                hasSoa = true;
+        }
+        return hasSoa;
+    }
+
+    /**
+     * @return the name a negative response is about: the name asked for, or the end of the CNAME chain in its answers
+     */
+    static DNSName negativeName(DNSName qname, DNS response) {
+        DNSName name = qname;
+        // every hop uses up one answer, so a loop in the chain can't keep this going
+        for (int hops = 0; hops < response.getAnswers().size(); hops++) {
+            DNSName next = null;
+            for (DNSResourceRecord rr : response.getAnswers()) {
+                if (rr.getType() == DNS.TYPE_CNAME && rr.getName().equals(name) && rr.getData() instanceof DNSRdataName)
+                    next = ((DNSRdataName) rr.getData()).getName();
+            }
+            if (next == null)
+                break;
+            name = next;
+        }
+        return name;
+    }
+
+    /**
+     * @return the cached negative answer with the SOA TTL counted down, or null on a miss
+     */
+    synchronized Entry get(DNSQuestion q) {
+        long now = System.currentTimeMillis();
+        Entry entry = lookup(new CacheKey(q.getName(), ANY_TYPE, q.getCls()), now);
+        if (entry == null)
+            entry = lookup(new CacheKey(q), now);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        int elapsed = (int) ((now - entry.insertedAt) / 1000);
+        return new Entry(entry.rcode, AnswerCache.copyWithTtl(entry.soa, entry.soa.getTtl() - elapsed),
+                entry.insertedAt, entry.expiresAt);
+    }
+
+    private Entry lookup(CacheKey key, long now) {
+        Entry entry = entries.get(key);
+        if (entry != null && now >= entry.expiresAt) {
+            entries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized void put(DNSQuestion q, DNS response) {
+        DNSResourceRecord soa = null;
+        for (DNSResourceRecord rr : response.getAuthorities()) {
+            if (rr.getType() == DNS.TYPE_SOA && rr.getData() instanceof DNSRdataSOA)
+                soa = rr;
+        }
+        if (soa == null)
+            return;
+        int ttl = Math.min(soa.getTtl(), ((DNSRdataSOA) soa.getData()).getMinimum());
+        if (ttl <= 0)
+            return;
+        byte rcode = response.getRcode();
+        DNSName name = negativeName(q.getName(), response);
+        CacheKey key = new CacheKey(name, (rcode == DNS.RCODE_NAME_ERROR) ? ANY_TYPE : q.getType(), q.getCls());
+        long now = System.currentTimeMillis();
+        // the SOA goes back out in the authority section, with the negative TTL as its own
+        entries.put(key, new Entry(rcode, AnswerCache.copyWithTtl(soa, ttl), now, now + ttl * 1000L));
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Puts back an entry from a snapshot, unless it has expired since
+     *
+     * @return true if it was kept
+     */
+    synchronized boolean restore(CacheKey key, Entry entry) {
+        if (System.currentTimeMillis() >= entry.expiresAt)
+            return false;
+        entries.put(key, entry);
+        return true;
+    }
+
+    /**
+     * @return a copy of every entry, least recently used first
+     */
+    synchronized Map<CacheKey, Entry> snapshot() {
+        return new LinkedHashMap<CacheKey, Entry>(entries);
+    }
+
+    static class Entry {
+        final byte rcode;
+        final DNSResourceRecord soa;
+        final long insertedAt;
+        final long expiresAt;
+
+        Entry(byte rcode, DNSResourceRecord soa, long insertedAt, long expiresAt) {
+            this.rcode = rcode;
+            this.soa = soa;
+            this.insertedAt = insertedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking listener built on DatagramChannel and a Selector per event loop.
+ *
+ * Event loops answer cache hits themselves and only hand misses to the worker pool, which sends the reply on
+ * the same channel once the recursion is done. Positive hits are answered wire to wire by a CacheHitResponder,
+ * without building DNS objects. When the platform has SO_REUSEPORT every loop gets its own channel
+ * and the kernel spreads datagrams across them, otherwise the loops share one channel.
+ */
+class NioFrontEnd {
+    private static final Logger log = Logger.getLogger(NioFrontEnd.class.getName());
+
+    private final int port;
+    private final int loopCount;
+    private final ExecutorService workers;
+    private final SimpleDNS.ServerArgs serverArgs;
+    private final BufferPool buffers;
+
+    NioFrontEnd(int port, int loopCount, ExecutorService workers, SimpleDNS.ServerArgs serverArgs) {
+        this.port = port;
+        this.loopCount = loopCount;
+        this.workers = workers;
+        this.serverArgs = serverArgs;
+        // replies are truncated to the EDNS0 size, so that's all a buffer ever has to hold
+        this.buffers = new BufferPool(serverArgs.ednsSize, loopCount * 2);
+    }
+
+    /**
+     * Binds the channels and starts one thread per event loop
+     */
+    void start() throws IOException {
+        DatagramChannel probe = DatagramChannel.open();
+        boolean reusePort = loopCount > 1 && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        probe.close();
+        DatagramChannel shared = null;
+        if (!reusePort)
+            shared = openChannel(false);
+        for (int i = 0; i < loopCount; i++) {
+            DatagramChannel channel = reusePort ? openChannel(true) : shared;
+            Thread t = new Thread(new EventLoop(channel), "event-loop-" + i);
+            t.start();
+        }
+    }
+
+    private DatagramChannel openChannel(boolean reusePort) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        if (reusePort)
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    /**
+     * Sends a reply from a pooled buffer. UDP gives no delivery guarantee anyway, so a full send buffer just
+     * drops the reply.
+     */
+    void reply(DNS dns, SocketAddress client, DatagramChannel channel) throws IOException {
+        ByteBuffer tx = buffers.acquire();
+        try {
+            dns.serialize(tx);
+            tx.flip();
+            channel.send(tx, client);
+        } finally {
+            buffers.release(tx);
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        private final DatagramChannel channel;
+
+        EventLoop(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            ByteBuffer rx = buffers.acquire();
+            ByteBuffer tx = buffers.acquire();
+            CacheHitResponder responder = new CacheHitResponder(serverArgs);
+            try {
+                Selector selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+                while (true) {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        keys.next();
+                        keys.remove();
+                        drain(rx, tx, responder);
+                    }
+                }
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "Event loop stopped", e);
+            } finally {
+                buffers.release(rx);
+                buffers.release(tx);
+            }
+        }
+
+        /**
+         * Handles every datagram waiting on the channel, rx and tx are reused for all of them
+         */
+        private void drain(ByteBuffer rx, ByteBuffer tx, CacheHitResponder responder) throws IOException {
+            SocketAddress client;
+            while ((client = channel.receive(rx)) != null) {
+                long receivedAt = System.nanoTime();
+                rx.flip();
+                try {
+                    if (responder.respond(rx, tx)) {
+                        tx.flip();
+                        channel.send(tx, client);
+                        serverArgs.metrics.answered(responder.getAnsweredType(), DNS.RCODE_NO_ERROR, receivedAt);
+                        continue;
+                    }
+                    DNS query = DNS.deserialize(rx);
+                    if (query.getOpcode() == DNS.OPCODE_STANDARD_QUERY) {
+                        // a hit too big for the client is truncated here rather than resolved again
+                        DNS cached = SimpleDNS.answerFromCache(query, serverArgs, responder.wasTooBig());
+                        if (cached != null) {
+                            SimpleDNS.finishReply(cached, query, serverArgs);
+                            reply(cached, client, channel);
+                            serverArgs.metrics.answered(query, cached, receivedAt);
+                        }
+                        else
+                            workers.execute(new Resolve(query, client, channel, receivedAt));
+                    }
+                } catch (RuntimeException e) {
+                    serverArgs.metrics.dropped();
+                    log.log(Level.FINE, "Dropping query: {0}", e.getMessage());
+                } finally {
+                    rx.clear();
+                    tx.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a cache miss through the recursive resolver on a worker thread
+     */
+    private class Resolve implements Runnable {
+        private final DNS query;
+        private final SocketAddress client;
+        private final DatagramChannel channel;
+        private final long receivedAt;
+
+        Resolve(DNS query, SocketAddress client, DatagramChannel channel, long receivedAt) {
+            this.query = query;
+            this.client = client;
+            this.channel = channel;
+            this.receivedAt = receivedAt;
+        }
+
+        public void run() {
+            try {
+                DNS resultingDns = SimpleDNS.handleQuestionsOrFail(query, serverArgs);
+                SimpleDNS.finishReply(resultingDns, query, serverArgs);
+                reply(resultingDns, client, channel);
+                serverArgs.metrics.answered(query, resultingDns, receivedAt);
+            } catch (IOException e) {
+                serverArgs.metrics.dropped();
+                log.log(Level.WARNING, "Reply to " + client + " failed", e);
+            } catch (RuntimeException e) {
+                serverArgs.metrics.dropped();
+                log.log(Level.FINE, "Dropping query: {0}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSView;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cache lookup key over the question of a query still in its buffer. The name is hashed and compared where it
+ * lies, so a cache hit doesn't copy it out. Reused from query to query, one per thread like the view it reads from.
+ *
+ * It equals the CacheKey with the same (name, type, class) but not the other way around, which is all a HashMap
+ * lookup needs: the key passed in is the one asked to compare itself with what is stored. Never store one.
+ */
+final class QuestionKey implements LookupKey {
+    private final DNSView view = new DNSView();
+    private final int[] labels = new int[DNSName.MAX_LENGTH / 2];
+    private ByteBuffer bb;
+    private int offset;
+    private int count;
+    private int nameLength;
+    private short type;
+    private short cls;
+    private int hash;
+
+    /**
+     * Points the key at the name at offset in the message in bb, which must stay put while the key is in use
+     */
+    QuestionKey wrap(ByteBuffer bb, int offset, short type, short cls) {
+        this.bb = bb;
+        this.offset = offset;
+        this.count = view.wrap(bb).readLabels(offset, labels);
+        this.type = type;
+        this.cls = cls;
+        nameLength = 1;
+        for (int i = 0; i < count; i++)
+            nameLength += 1 + (bb.get(labels[i]) & 0xff);
+        hash = (DNSName.hashLabels(bb, labels, count) * 31 + type) * 31 + cls;
+        return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CacheKey))
+            return false;
+        CacheKey other = (CacheKey) o;
+        return type == other.type && cls == other.cls && other.name.equalsLabels(bb, labels, count);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean matchesWire(ByteBuffer other, int offset, int nameLength) {
+        if (nameLength != this.nameLength || !DNSName.equalsLabels(bb, labels, count, other, offset))
+            return false;
+        return other.getShort(offset + nameLength) == type && other.getShort(offset + nameLength + 2) == cls;
+    }
+
+    @Override
+    public CacheKey toCacheKey() {
+        return new CacheKey(view.readName(offset), type, cls);
+    }
+}
@@ -0,0 +1,123 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Smoothed round trip times per upstream server, used to pick which of a zone's servers to ask first and how long
+ * to wait for each one.
+ *
+ * Samples are smoothed like TCP does (RFC 6298) and the retransmission timeout comes from the smoothed RTT and its
+ * variance. A timeout doubles the server's timeout and pushes its SRTT up at least that far, so unresponsive servers
+ * drop to the back of the list. Servers that keep getting passed over slowly decay back towards the front, so a
+ * server that was down once gets tried again eventually. Unknown servers start with a small random SRTT, which makes
+ * the resolver probe each of them once, like BIND does.
+ */
+class RttTracker {
+    private static final int MIN_TIMEOUT_MS = 100;
+    private static final int INITIAL_TIMEOUT_MS = 1000;
+    private static final int UNKNOWN_SRTT_MS = 32;
+    private static final double DECAY = 0.98;
+
+    private final int maxTimeoutMs;
+    private final ConcurrentHashMap<String, Stats> servers;
+
+    RttTracker(int maxTimeoutMs) {
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.servers = new ConcurrentHashMap<String, Stats>();
+    }
+
+    /**
+     * @return how long to wait for a reply from the server before giving up on this attempt
+     */
+    int timeoutFor(String server) {
+        Stats stats = stats(server);
+        synchronized (stats) {
+            return stats.rto;
+        }
+    }
+
+    void responded(String server, double rttMs) {
+        Stats stats = stats(server);
+        synchronized (stats) {
+            if (!stats.sampled) {
+                stats.srtt = rttMs;
+                stats.rttvar = rttMs / 2;
+                stats.sampled = true;
+            } else {
+                stats.rttvar = 0.75 * stats.rttvar + 0.25 * Math.abs(stats.srtt - rttMs);
+                stats.srtt = 0.875 * stats.srtt + 0.125 * rttMs;
+            }
+            stats.rto = clamp((int) Math.ceil(stats.srtt + 4 * stats.rttvar));
+        }
+    }
+
+    void timedOut(String server) {
+        Stats stats = stats(server);
+        synchronized (stats) {
+            stats.rto = clamp(stats.rto * 2);
+            stats.srtt = Math.max(stats.srtt, stats.rto);
+        }
+    }
+
+    /**
+     * @return the servers fastest first. Every server but the first has its SRTT decayed a little.
+     */
+    List<String> rank(List<String> candidates) {
+        List<String> ranked = new ArrayList<String>(candidates);
+        if (ranked.size() < 2)
+            return ranked;
+        final Map<String, Double> srtts = new HashMap<String, Double>();
+        for (String server : ranked) {
+            Stats stats = stats(server);
+            synchronized (stats) {
+                srtts.put(server, stats.srtt);
+            }
+        }
+        Collections.sort(ranked, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Double.compare(srtts.get(a), srtts.get(b));
+            }
+        });
+        for (int i = 1; i < ranked.size(); i++) {
+            Stats stats = stats(ranked.get(i));
+            synchronized (stats) {
+                stats.srtt *= DECAY;
+            }
+        }
+        return ranked;
+    }
+
+    private Stats stats(String server) {
+        Stats stats = servers.get(server);
+        if (stats == null) {
+            Stats fresh = new Stats(ThreadLocalRandom.current().nextInt(UNKNOWN_SRTT_MS), clamp(INITIAL_TIMEOUT_MS));
+            stats = servers.putIfAbsent(server, fresh);
+            if (stats == null)
+                stats = fresh;
+        }
+        return stats;
+    }
+
+    private int clamp(int timeoutMs) {
+        return Math.max(MIN_TIMEOUT_MS, Math.min(maxTimeoutMs, timeoutMs));
+    }
+
+    private static class Stats {
+        double srtt;
+        double rttvar;
+        int rto;
+        boolean sampled;
+
+        Stats(double srtt, int rto) {
+            this.srtt = srtt;
+            this.rto = rto;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+import edu.wisc.cs.sdn.simpledns.packet.DNSResourceRecord;
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The answer cache split into independent AnswerCache shards, picked by a hash of the key.
+ *
+ * Every shard has its own lock, its own LRU order (or slabs, off the heap) and its own stats, so threads answering
+ * different names rarely wait on each other. Capacity and off-heap memory are divided evenly between the shards, so
+ * one shard can fill up and evict while others still have room, which is fine as long as keys hash evenly.
+ *
+ * Off the heap every shard needs slabs of its own, so a small budget gets fewer shards than asked for rather than
+ * more memory than it allows.
+ */
+class ShardedAnswerCache {
+    private static final Logger log = Logger.getLogger(ShardedAnswerCache.class.getName());
+
+    private final AnswerCache[] shards;
+    private final int mask;
+
+    /**
+     * @param shardCount   rounded up to a power of two, then down to what offHeapBytes can hold
+     * @param capacity     most entries kept on the heap, across all shards
+     * @param offHeapBytes 0 to keep answers on the heap, otherwise at least SlabStore.MIN_CAPACITY
+     */
+    ShardedAnswerCache(int shardCount, int capacity, int prefetchPercent, long maxStaleMs, long offHeapBytes) {
+        if (offHeapBytes != 0 && offHeapBytes < SlabStore.MIN_CAPACITY)
+            throw new IllegalArgumentException("An off-heap answer cache needs at least "
+                    + (SlabStore.MIN_CAPACITY >> 20) + " MB");
+        int count = 1;
+        while (count < shardCount)
+            count <<= 1;
+        if (offHeapBytes != 0) {
+            int asked = count;
+            while (offHeapBytes / count < SlabStore.MIN_CAPACITY)
+                count >>= 1;
+            if (count < asked)
+                log.info("An off-heap budget of " + (offHeapBytes >> 20) + " MB fits " + count
+                        + " answer cache shards, not " + asked);
+        }
+        this.shards = new AnswerCache[count];
+        this.mask = count - 1;
+        int shardCapacity = Math.max(1, (capacity + count - 1) / count);
+        for (int i = 0; i < count; i++)
+            shards[i] = new AnswerCache(shardCapacity, prefetchPercent, maxStaleMs, offHeapBytes / count);
+    }
+
+    private AnswerCache shard(LookupKey key) {
+        int h = key.hashCode();
+        return shards[(h ^ (h >>> 16)) & mask];
+    }
+
+    /**
+     * @see AnswerCache#get
+     */
+    List<DNSResourceRecord> get(DNSQuestion q) {
+        return shard(new CacheKey(q)).get(q);
+    }
+
+    List<DNSResourceRecord> get(DNSQuestion q, boolean count) {
+        return shard(new CacheKey(q)).get(q, count);
+    }
+
+    /**
+     * @see AnswerCache#writeAnswers
+     */
+    long writeAnswers(LookupKey key, DNSWriter out) {
+        return shard(key).writeAnswers(key, out);
+    }
+
+    /**
+     * @see AnswerCache#getStale
+     */
+    List<DNSResourceRecord> getStale(DNSQuestion q) {
+        return shard(new CacheKey(q)).getStale(q);
+    }
+
+    void put(DNSQuestion q, List<DNSResourceRecord> answers) {
+        shard(new CacheKey(q)).put(q, answers);
+    }
+
+    boolean restore(CacheKey key, AnswerCache.Entry entry) {
+        return shard(key).restore(key, entry);
+    }
+
+    /**
+     * @return a copy of every entry, shard by shard and least recently used first within a shard. That is all the
+     * order restore needs, as every key goes back to the shard it came from.
+     */
+    Map<CacheKey, AnswerCache.Entry> snapshot() {
+        Map<CacheKey, AnswerCache.Entry> copy = new LinkedHashMap<CacheKey, AnswerCache.Entry>();
+        for (AnswerCache shard : shards)
+            copy.putAll(shard.snapshot());
+        return copy;
+    }
+
+    void setPrefetcher(AnswerCache.Prefetcher prefetcher) {
+        for (AnswerCache shard : shards)
+            shard.setPrefetcher(prefetcher);
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return one shard, for its own stats
+     */
+    AnswerCache getShard(int i) {
+        return shards[i];
+    }
+
+    long getHits() {
+        long hits = 0;
+        for (AnswerCache shard : shards)
+            hits += shard.getHits();
+        return hits;
+    }
+
+    long getMisses() {
+        long misses = 0;
+        for (AnswerCache shard : shards)
+            misses += shard.getMisses();
+        return misses;
+    }
+
+    long getEvictions() {
+        long evictions = 0;
+        for (AnswerCache shard : shards)
+            evictions += shard.getEvictions();
+        return evictions;
+    }
+
+    long getPrefetches() {
+        long prefetches = 0;
+        for (AnswerCache shard : shards)
+            prefetches += shard.getPrefetches();
+        return prefetches;
+    }
+
+    long getStaleHits() {
+        long staleHits = 0;
+        for (AnswerCache shard : shards)
+            staleHits += shard.getStaleHits();
+        return staleHits;
+    }
+
+    int size() {
+        int size = 0;
+        for (AnswerCache shard : shards)
+            size += shard.size();
+        return size;
+    }
+}
@@ -2,36 +2,163 @@ package edu.wisc.cs.sdn.simpledns;
 
 import edu.wisc.cs.sdn.simpledns.packet.*;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class SimpleDNS {
+    static {
+        // one line per record unless the JVM was given a format of its own
+        if (System.getProperty("java.util.logging.SimpleFormatter.format") == null)
+            System.setProperty("java.util.logging.SimpleFormatter.format", "%1$tF %1$tT %4$s %3$s: %5$s%6$s%n");
+    }
+
+    private static final Logger log = Logger.getLogger(SimpleDNS.class.getName());
     private static final int initPort = 8053;
+    private static final int upstreamSockets = 4;
+    // extra passes over a zone's servers when every one of them timed out
+    private static final int upstreamRetries = 2;
+    // how far a resolution may go before it is taken for a loop in the upstream data
+    private static final int maxCnameHops = 8;
+    private static final int maxReferrals = 16;
 
     public static void main(String[] args) {
         final ServerArgs serverArgs;
         try {
             serverArgs = parseArgs(args);
+            configureLogging(serverArgs.logLevel);
+            serverArgs.ec2Csv.start();
+            if (serverArgs.snapshotFile != null) {
+                CacheSnapshot snapshot = new CacheSnapshot(serverArgs.snapshotFile,
+                        serverArgs.snapshotIntervalSeconds * 1000L, serverArgs.answerCache,
+                        serverArgs.delegationCache, serverArgs.negativeCache);
+                snapshot.load();
+                snapshot.start();
+            }
+            if (serverArgs.metricsPort > 0)
+                new MetricsServer(serverArgs.metricsPort, serverArgs).start();
+            ExecutorService workers = Executors.newFixedThreadPool(serverArgs.workerCount);
+            serverArgs.answerCache.setPrefetcher(new Prefetcher(workers, serverArgs));
+            new TcpFrontEnd(initPort, workers, serverArgs).start();
+            if (serverArgs.eventLoops > 0) {
+                new NioFrontEnd(initPort, serverArgs.eventLoops, workers, serverArgs).start();
+                return;
+            }
             DatagramSocket socket = new DatagramSocket(initPort);
+            // this thread only receives, every query is resolved and answered on a worker
             while (true) {
-                IncomingPacketInfo incomingInfo = receiveInitPacket(socket, serverArgs);
-                DNS resultingDns = handleQuestions(incomingInfo.dnsInfo, serverArgs);
-                resultingDns.setId(incomingInfo.dnsInfo.getId());
-                replyToClient(resultingDns, incomingInfo.srcIp, incomingInfo.srcPort, socket);
+                DatagramPacket pk = receiveInitPacket(socket, serverArgs.ednsSize);
+                workers.execute(new QueryWorker(pk, System.nanoTime(), socket, serverArgs));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            log.log(Level.SEVERE, "Listener failed", e);
         }
 
     }
 
+    /**
+     * Resolves a single client query and sends the reply on the shared listener socket
+     */
+    private static class QueryWorker implements Runnable {
+        private final DatagramPacket pk;
+        private final long receivedAt;
+        private final DatagramSocket socket;
+        private final ServerArgs serverArgs;
+
+        QueryWorker(DatagramPacket pk, long receivedAt, DatagramSocket socket, ServerArgs serverArgs) {
+            this.pk = pk;
+            this.receivedAt = receivedAt;
+            this.socket = socket;
+            this.serverArgs = serverArgs;
+        }
+
+        public void run() {
+            try {
+                IncomingPacketInfo incomingInfo = parseInitPacket(pk);
+                DNS resultingDns = answerFromCache(incomingInfo.dnsInfo, serverArgs);
+                if (resultingDns == null)
+                    resultingDns = handleQuestionsOrFail(incomingInfo.dnsInfo, serverArgs);
+                finishReply(resultingDns, incomingInfo.dnsInfo, serverArgs);
+                replyToClient(resultingDns, incomingInfo.srcIp, incomingInfo.srcPort, socket);
+                serverArgs.metrics.answered(incomingInfo.dnsInfo, resultingDns, receivedAt);
+            } catch (IOException e) {
+                serverArgs.metrics.dropped();
+                log.log(Level.WARNING, "Reply to " + pk.getSocketAddress() + " failed", e);
+            } catch (RuntimeException e) {
+                // one bad query shouldn't take the worker down with it
+                serverArgs.metrics.dropped();
+                log.log(Level.FINE, "Dropping query: {0}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Refreshes cache entries that are about to expire on a worker, so the next client doesn't wait on it. The whole
+     * CNAME chain is asked again, an entry built from cached targets would only live as long as they do.
+     */
+    private static class Prefetcher implements AnswerCache.Prefetcher {
+        private final ExecutorService workers;
+        private final ServerArgs serverArgs;
+
+        Prefetcher(ExecutorService workers, ServerArgs serverArgs) {
+            this.workers = workers;
+            this.serverArgs = serverArgs;
+        }
+
+        public void prefetch(final CacheKey key) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    DNSQuestion q = new DNSQuestion(key.name, key.type);
+                    q.setClass(key.cls);
+                    try {
+                        resolveUncached(q, serverArgs.upstreamPort, new DNS(), key.type, serverArgs, 0, true);
+                    } catch (IOException | RuntimeException e) {
+                        // the entry just runs out as usual
+                        log.log(Level.FINE, "Prefetch of {0} failed: {1}", new Object[]{key.name, e.getMessage()});
+                    }
+                }
+            });
+        }
+    }
+
     private static void replyToClient(DNS dns, String srcIp, int srcPort, DatagramSocket socket) throws IOException {
         sendDNSRequest(dns, srcIp, srcPort, socket);
     }
 
+    /**
+     * Last touches before a reply goes out: the client's id, our own OPT record if the client used EDNS0, and
+     * truncation to what the client can take over UDP
+     */
+    static void finishReply(DNS reply, DNS query, ServerArgs serverArgs) {
+        finishReply(reply, query, serverArgs, false);
+    }
+
+    /**
+     * @param overTcp a reply over TCP only has to fit its 16 bit length prefix
+     */
+    static void finishReply(DNS reply, DNS query, ServerArgs serverArgs, boolean overTcp) {
+        reply.setId(query.getId());
+        // whatever OPT came back from upstream describes the upstream, not us
+        reply.removeOpt();
+        int limit = DNS.MIN_UDP_PAYLOAD;
+        if (query.getOpt() != null) {
+            reply.setUdpPayloadSize(serverArgs.ednsSize);
+            limit = Math.min(query.getUdpPayloadSize(), serverArgs.ednsSize);
+        }
+        reply.truncate(overTcp ? 65535 : limit);
+    }
+
     /**
      * Just parsing the arguments into a neat data structure
      *
@@ -39,52 +166,176 @@ public class SimpleDNS {
      * @return the wrapped parsed args
      */
     private static ServerArgs parseArgs(String[] args) throws IOException {
-        if ((args.length == 4) && (args[0].equals("-r")) && (args[2].equals("-e"))) {
-            return new ServerArgs(args[1], args[3]);
-        } else {
-            throw new IllegalArgumentException("Required format: java edu.wisc.cs.sdn.simpledns.SimpleDNS " +
-                    "-r <root server ip> -e <ec2 csv>");
+        String rootSvrIp = null;
+        String ec2Filename = null;
+        // blocking upstream round trips dominate, so keep a few workers per core busy
+        int workerCount = Runtime.getRuntime().availableProcessors() * 4;
+        int cacheSize = 10000;
+        int offHeapMb = 0;
+        // enough that workers on different cores rarely want the same lock
+        int cacheShards = Runtime.getRuntime().availableProcessors() * 2;
+        int eventLoops = 0;
+        int maxTimeoutMs = 2000;
+        int hedgeDelayMs = 0;
+        // the DNS flag day 2020 default, fits in one packet on about any path without fragmenting
+        int ednsSize = 1232;
+        int prefetchPercent = 10;
+        // RFC 8767 suggests keeping expired answers for one to three days
+        int maxStaleSeconds = 86400;
+        int metricsPort = 0;
+        int upstreamPort = 53;
+        Level logLevel = Level.INFO;
+        String snapshotFile = null;
+        int snapshotIntervalSeconds = 300;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("-r"))
+                rootSvrIp = args[i + 1];
+            else if (args[i].equals("-e"))
+                ec2Filename = args[i + 1];
+            else if (args[i].equals("-w"))
+                workerCount = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-c"))
+                cacheSize = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-o"))
+                offHeapMb = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-S"))
+                cacheShards = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-n"))
+                eventLoops = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-t"))
+                maxTimeoutMs = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-H"))
+                hedgeDelayMs = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-u"))
+                ednsSize = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-p"))
+                prefetchPercent = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-s"))
+                maxStaleSeconds = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-m"))
+                metricsPort = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-P"))
+                upstreamPort = Integer.parseInt(args[i + 1]);
+            else if (args[i].equals("-l"))
+                logLevel = Level.parse(args[i + 1].toUpperCase(Locale.ROOT));
+            else if (args[i].equals("-f"))
+                snapshotFile = args[i + 1];
+            else if (args[i].equals("-i"))
+                snapshotIntervalSeconds = Integer.parseInt(args[i + 1]);
+            else
+                throw usage();
         }
+        if (rootSvrIp == null || ec2Filename == null || (args.length % 2) != 0 || workerCount < 1 || cacheSize < 1
+                || offHeapMb < 0 || (offHeapMb > 0 && offHeapMb * (1L << 20) < SlabStore.MIN_CAPACITY)
+                || cacheShards < 1 || eventLoops < 0 || maxTimeoutMs < 1 || hedgeDelayMs < 0
+                || ednsSize < DNS.MIN_UDP_PAYLOAD || ednsSize > 65535
+                || prefetchPercent < 0 || prefetchPercent > 100 || maxStaleSeconds < 0
+                || metricsPort < 0 || metricsPort > 65535 || upstreamPort < 1 || upstreamPort > 65535
+                || snapshotIntervalSeconds < 0)
+            throw usage();
+        return new ServerArgs(rootSvrIp, ec2Filename, workerCount, cacheSize, offHeapMb, cacheShards, eventLoops,
+                maxTimeoutMs, hedgeDelayMs, ednsSize, prefetchPercent, maxStaleSeconds, metricsPort, logLevel,
+                upstreamPort, snapshotFile, snapshotIntervalSeconds);
+    }
+
+    private static IllegalArgumentException usage() {
+        return new IllegalArgumentException("Required format: java edu.wisc.cs.sdn.simpledns.SimpleDNS " +
+                "-r <root server ip> -e <ec2 csv> [-w <worker threads>] [-c <cache entries>] [-o <off-heap answer cache mb, 0 or at least 2>] [-S <answer cache shards>] [-n <nio event loops>] [-t <max upstream timeout ms>] " +
+                "[-H <hedge delay ms>] [-u <edns udp payload size>] [-p <prefetch in last % of ttl>] " +
+                "[-s <max stale seconds>] [-m <metrics http port>] [-l <log level>] [-P <upstream dns port>] " +
+                "[-f <cache snapshot file>] [-i <cache snapshot interval seconds>]");
+    }
+
+    /**
+     * Applies the level to the server's own loggers and lets the handlers through at that level. Per packet detail is
+     * at FINE and below, so the default of INFO keeps logging off the query path.
+     */
+    private static void configureLogging(Level level) {
+        Logger.getLogger(SimpleDNS.class.getPackage().getName()).setLevel(level);
+        for (Handler handler : Logger.getLogger("").getHandlers())
+            handler.setLevel(level);
     }
 
     /**
      * This just wraps the args
      */
-    private static class ServerArgs {
+    static class ServerArgs {
         final String rootSvrIp;
-        final Map<Integer, Ec2Val> ec2Csv;
+        final Ec2TableWatcher ec2Csv;
+        final int workerCount;
+        final int eventLoops;
+        final ShardedAnswerCache answerCache;
+        final DelegationCache delegationCache;
+        final NegativeCache negativeCache;
+        final UpstreamClient upstream;
+        final TcpUpstreamClient tcpUpstream;
+        final RttTracker rtt;
+        final SingleFlight singleFlight;
+        final Metrics metrics;
+        final int hedgeDelayMs;
+        // largest UDP message we take and send, advertised in our OPT records
+        final int ednsSize;
+        // 0 when there is no metrics endpoint
+        final int metricsPort;
+        final Level logLevel;
+        // where authorities are asked, only ever not 53 when testing against local ones
+        final int upstreamPort;
+        // null when the caches aren't saved across restarts
+        final String snapshotFile;
+        // 0 only saves on shutdown
+        final int snapshotIntervalSeconds;
 
-        ServerArgs(String rootSvrIp, String ec2Filename) throws IOException {
+        /**
+         * @param offHeapMb if not 0, answers are cached in this much direct memory rather than cacheSize entries on the
+         *                  heap
+         */
+        ServerArgs(String rootSvrIp, String ec2Filename, int workerCount, int cacheSize, int offHeapMb,
+                   int cacheShards, int eventLoops, int maxTimeoutMs, int hedgeDelayMs, int ednsSize,
+                   int prefetchPercent, int maxStaleSeconds, int metricsPort, Level logLevel, int upstreamPort,
+                   String snapshotFile, int snapshotIntervalSeconds) throws IOException {
             this.rootSvrIp = rootSvrIp;
-            this.ec2Csv = new HashMap<Integer, Ec2Val>();
-            BufferedReader csvReader = new BufferedReader(new FileReader(ec2Filename));
-            String row;
-            while ((row = csvReader.readLine()) != null) {
-                String[] dataComma = row.split(",");
-                if (dataComma.length != 2)
-                    throw new RuntimeException("Improperly formed csv");
-                String[] dataSlash = dataComma[0].split("/");
-                this.ec2Csv.put(toIPv4Address(dataSlash[0]),
-                        new Ec2Val(Integer.parseInt(dataSlash[1]),dataComma[1]));
-            }
-            csvReader.close();
+            this.workerCount = workerCount;
+            this.eventLoops = eventLoops;
+            this.answerCache = new ShardedAnswerCache(cacheShards, cacheSize, prefetchPercent,
+                    maxStaleSeconds * 1000L, offHeapMb * (1L << 20));
+            this.delegationCache = new DelegationCache(cacheSize);
+            this.negativeCache = new NegativeCache(cacheSize);
+            this.upstream = new UpstreamClient(upstreamSockets, ednsSize);
+            this.tcpUpstream = new TcpUpstreamClient(maxTimeoutMs);
+            this.rtt = new RttTracker(maxTimeoutMs);
+            // clients have long given up by the time every pass over a zone's servers has timed out
+            this.singleFlight = new SingleFlight((upstreamRetries + 1L) * maxTimeoutMs);
+            this.metrics = new Metrics();
+            this.hedgeDelayMs = hedgeDelayMs;
+            this.ednsSize = ednsSize;
+            this.metricsPort = metricsPort;
+            this.logLevel = logLevel;
+            this.upstreamPort = upstreamPort;
+            this.snapshotFile = snapshotFile;
+            this.snapshotIntervalSeconds = snapshotIntervalSeconds;
+            this.ec2Csv = new Ec2TableWatcher(ec2Filename);
         }
     }
 
     /**
-     * Waits for an incoming packet and handles it
+     * Waits for an incoming packet. The buffer is handed off to a worker, so it is fresh every time
      *
      * @throws IOException
      */
-    private static IncomingPacketInfo receiveInitPacket(DatagramSocket socket, ServerArgs serverArgs) throws IOException {
-        byte[] buff = new byte[1518]; // what size should this be?
+    private static DatagramPacket receiveInitPacket(DatagramSocket socket, int bufferSize) throws IOException {
+        byte[] buff = new byte[bufferSize];
         DatagramPacket pk = new DatagramPacket(buff, buff.length);
-        System.out.println("Waiting for packet!");
         socket.receive(pk);
+        return pk;
+    }
+
+    /**
+     * Parses a received packet, only standard queries are handled
+     */
+    private static IncomingPacketInfo parseInitPacket(DatagramPacket pk) {
         DNS dns = DNS.deserialize(pk.getData(), pk.getLength());
-        System.out.println("DNS info: " + dns);
+        log.log(Level.FINEST, "Query: {0}", dns);
         if (dns.getOpcode() == DNS.OPCODE_STANDARD_QUERY) {
-            System.out.println("Opcode is 0");
             return new IncomingPacketInfo(pk.getAddress().getHostAddress(), pk.getPort(), dns); // is this the correct stuff
         } else {
             throw new RuntimeException("incorrect opcode");
@@ -106,39 +357,93 @@ public class SimpleDNS {
     static class Ec2Val {
         final int mask;
         final String location;
+        // kept encoded so the wire path can copy it without converting
+        final byte[] locationBytes;
 
         Ec2Val(int mask, String location) {
             this.mask = mask;
             this.location = location;
+            this.locationBytes = location.getBytes(StandardCharsets.US_ASCII);
         }
 
     }
 
     /**
-     * Handles all questions within a DNS packet
+     * Answers a recursive query straight from the caches, without touching the network
+     *
+     * @return the reply, or null if the query needs resolving
+     */
+    static DNS answerFromCache(DNS dns, ServerArgs serverArgs) {
+        return answerFromCache(dns, serverArgs, true, true);
+    }
+
+    /**
+     * For queries the wire path already looked up in the answer cache
+     *
+     * @param wireHit true when the wire path found an answer but it was too big to write for the client, so it is
+     *                read again here, to be truncated, without counting a second hit. False when the wire path
+     *                missed, so only the negative cache is left to try.
+     */
+    static DNS answerFromCache(DNS dns, ServerArgs serverArgs, boolean wireHit) {
+        return answerFromCache(dns, serverArgs, wireHit, false);
+    }
+
+    private static DNS answerFromCache(DNS dns, ServerArgs serverArgs, boolean checkAnswers, boolean countHit) {
+        if (!dns.isRecursionDesired() || dns.getQuestions().isEmpty())
+            return null;
+        DNSQuestion q = dns.getQuestions().get(0);
+        short q_type = q.getType();
+        if (q_type != DNS.TYPE_A && q_type != DNS.TYPE_NS && q_type != DNS.TYPE_CNAME && q_type != DNS.TYPE_AAAA)
+            return null;
+        DNS retDns = lookupCaches(q, serverArgs, checkAnswers, countHit);
+        if (retDns == null)
+            return null;
+        if (q_type == DNS.TYPE_A)
+            appendEC2TextRecords(retDns, serverArgs.ec2Csv.texts());
+        retDns.setId(dns.getId());
+        return retDns;
+    }
+
+    /**
+     * handleQuestions for the front ends. A lookup that fails is answered with SERVFAIL and the client's question
+     * right away, instead of leaving the client to time out and ask again while upstream is already in trouble.
+     */
+    static DNS handleQuestionsOrFail(DNS dns, ServerArgs serverArgs) {
+        try {
+            return handleQuestions(dns, serverArgs);
+        } catch (RuntimeException e) {
+            log.log(Level.FINE, "Answering SERVFAIL: {0}", e.getMessage());
+            DNS reply = new DNS();
+            reply.setQuery(false);
+            reply.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+            reply.setRecursionDesired(dns.isRecursionDesired());
+            reply.setRecursionAvailable(true);
+            reply.setRcode(DNS.RCODE_SERVER_FAILURE);
+            reply.setQuestions(new ArrayList<DNSQuestion>(dns.getQuestions()));
+            return reply;
+        }
+    }
+
+    /**
+     * Handles all questions within a DNS packet. Callers try answerFromCache first, so this always resolves.
      *
      * @param dns
      */
-    private static DNS handleQuestions(DNS dns, ServerArgs serverArgs) throws SocketException {
-        final int dnsPort = 53;
-        DatagramSocket dnsResolutionSocket = new DatagramSocket(dnsPort);
+    static DNS handleQuestions(DNS dns, ServerArgs serverArgs) {
+        final int dnsPort = serverArgs.upstreamPort;
         for (DNSQuestion q : dns.getQuestions()) {
             short q_type;
             switch (q.getType()) {
                 case DNS.TYPE_A:
-                    System.out.println("Received question with type A");
                     q_type = DNS.TYPE_A;
                     break;
                 case DNS.TYPE_NS:
-                    System.out.println("Received question with type NS");
                     q_type = DNS.TYPE_NS;
                     break;
                 case DNS.TYPE_CNAME:
-                    System.out.println("Received question with type CNAME");
                     q_type = DNS.TYPE_CNAME;
                     break;
                 case DNS.TYPE_AAAA:
-                    System.out.println("Received question with type AAAA");
                     q_type = DNS.TYPE_AAAA;
                     break;
                 default:
@@ -147,28 +452,140 @@ public class SimpleDNS {
             try {
                 DNS retDns;
                 if (dns.isRecursionDesired()) {
-                    System.out.println("Recursive search");
-                    retDns = recurQueryDNSServer(q, serverArgs.rootSvrIp, dnsResolutionSocket, dnsPort, dns, q_type, serverArgs.ec2Csv, serverArgs);
+                    retDns = resolveOrServeStale(q, dnsPort, dns, q_type, serverArgs);
+                    // annotations are added on the way out, so they never end up in the cache
+                    if (q_type == DNS.TYPE_A)
+                        appendEC2TextRecords(retDns, serverArgs.ec2Csv.texts());
                 } else {
-                    System.out.println("non recursive search");
-                    retDns = queryDNSServer(q, serverArgs.rootSvrIp, dnsResolutionSocket, dnsPort, dns);
+                    retDns = queryDNSServer(q, serverArgs.rootSvrIp, dnsPort, dns, serverArgs);
                 }
-                dnsResolutionSocket.close();
                 return retDns;
             } catch (IOException e) {
-                e.printStackTrace();
+                log.log(Level.FINE, "Lookup of {0} failed: {1}", new Object[]{q.getName(), e.getMessage()});
             }
 
         }
         throw new RuntimeException("No questions, this shouldn't happen");
     }
 
-    private static DNS recurQueryDNSServer(DNSQuestion originalQuestion, String svrIp, DatagramSocket dnsResolutionSocket, int dnsPort, DNS dns, short q_type, Map<Integer, Ec2Val> ec2Map, ServerArgs serverArgs) throws IOException {
-        DNS lookedUpDns = queryDNSServer(originalQuestion, svrIp, dnsResolutionSocket, dnsPort, dns);
+    /**
+     * Answers a question from the answer cache, or walks down from the root and caches what comes back
+     *
+     * @param refresh skip the caches, for a prefetch
+     */
+    private static DNS resolveFromRoot(DNSQuestion q, int dnsPort, DNS dns, short q_type,
+                                       ServerArgs serverArgs, int cnameHops, boolean refresh) throws IOException {
+        DNS cached = refresh ? null : lookupCaches(q, serverArgs, true, true);
+        if (cached != null)
+            return cached;
+        return resolveUncached(q, dnsPort, dns, q_type, serverArgs, cnameHops, refresh);
+    }
+
+    /**
+     * @return a reply built from the answer or negative cache, or null on a miss
+     */
+    private static DNS lookupCaches(DNSQuestion q, ServerArgs serverArgs, boolean checkAnswers, boolean countHit) {
+        List<DNSResourceRecord> cached = checkAnswers ? serverArgs.answerCache.get(q, countHit) : null;
+        if (cached != null)
+            return generateDNSFromCache(q, cached);
+        NegativeCache.Entry negative = serverArgs.negativeCache.get(q);
+        if (negative != null)
+            return generateNegativeDNS(q, negative);
+        return null;
+    }
+
+    /**
+     * Resolves the question, falling back on an expired answer when upstream can't be reached (RFC 8767)
+     */
+    private static DNS resolveOrServeStale(DNSQuestion q, int dnsPort, DNS dns, short q_type,
+                                           ServerArgs serverArgs) throws IOException {
+        try {
+            return resolveUncached(q, dnsPort, dns, q_type, serverArgs, 0, false);
+        } catch (IOException | RuntimeException e) {
+            List<DNSResourceRecord> stale = serverArgs.answerCache.getStale(q);
+            if (stale == null)
+                throw e;
+            log.log(Level.FINE, "Serving stale answer for {0}: {1}", new Object[]{q.getName(), e.getMessage()});
+            return generateDNSFromCache(q, stale);
+        }
+    }
+
+    /**
+     * Walks down from the closest known zone cut and caches what comes back. Concurrent lookups of the same question
+     * share one walk.
+     *
+     * @param cnameHops how many CNAMEs were followed to get to this question
+     * @param refresh    resolve any CNAME targets upstream too instead of from the cache
+     */
+    private static DNS resolveUncached(final DNSQuestion q, final int dnsPort, final DNS dns, final short q_type,
+                                       final ServerArgs serverArgs, final int cnameHops, final boolean refresh)
+            throws IOException {
+        return serverArgs.singleFlight.run(new CacheKey(q), new SingleFlight.Lookup() {
+            public DNS resolve() throws IOException {
+                return walkFromClosestZone(q, dnsPort, dns, q_type, serverArgs, cnameHops, refresh);
+            }
+        });
+    }
+
+    private static DNS walkFromClosestZone(DNSQuestion q, int dnsPort, DNS dns, short q_type,
+                                           ServerArgs serverArgs, int cnameHops, boolean refresh) throws IOException {
+        DNS lookedUpDns = null;
+        DelegationCache.Delegation closest = serverArgs.delegationCache.findClosest(q.getName());
+        if (closest != null) {
+            try {
+                lookedUpDns = recurQueryServers(q, closest.zone, closest.servers, dnsPort, dns, q_type, serverArgs.ec2Csv.current(), serverArgs, cnameHops, refresh, 0);
+            } catch (RuntimeException e) {
+                log.log(Level.FINE, "Cached zone {0} failed, starting over from the root", closest.zone);
+            }
+        }
+        if (lookedUpDns == null)
+            lookedUpDns = recurQueryServers(q, DNSName.ROOT, Collections.singletonList(serverArgs.rootSvrIp), dnsPort, dns, q_type, serverArgs.ec2Csv.current(), serverArgs, cnameHops, refresh, 0);
+        if (NegativeCache.isNegative(lookedUpDns))
+            serverArgs.negativeCache.put(q, lookedUpDns);
+        else
+            serverArgs.answerCache.put(q, lookedUpDns.getAnswers());
+        return lookedUpDns;
+    }
+
+    private static DNS generateDNSFromCache(DNSQuestion q, List<DNSResourceRecord> answers) {
+        DNS dns = new DNS();
+        dns.setQuery(false);
+        dns.setOpcode(DNS.OPCODE_STANDARD_QUERY);
+        dns.setRecursionDesired(true);
+        dns.setRecursionAvailable(true);
+        dns.setRcode(DNS.RCODE_NO_ERROR);
+        dns.setQuestions(new ArrayList<DNSQuestion>(Arrays.asList(q)));
+        dns.setAnswers(answers);
+        return dns;
+    }
+
+    private static DNS generateNegativeDNS(DNSQuestion q, NegativeCache.Entry negative) {
+        DNS dns = generateDNSFromCache(q, new ArrayList<DNSResourceRecord>());
+        dns.setRcode(negative.rcode);
+        dns.addAuthority(negative.soa);
+        return dns;
+    }
+
+    private static DNS recurQueryDNSServer(DNSQuestion originalQuestion, DNSName zone, String svrIp, int dnsPort, DNS dns, short q_type, Ec2PrefixTable ec2Map, ServerArgs serverArgs, int cnameHops, boolean refresh, int referrals) throws IOException {
+        DNS lookedUpDns = queryDNSServer(originalQuestion, svrIp, dnsPort, dns, serverArgs);
+        return followResponse(originalQuestion, zone, lookedUpDns, dnsPort, dns, q_type, ec2Map, serverArgs, cnameHops, refresh, referrals);
+    }
+
+    /**
+     * Works out what one server's reply means: an answer (chasing any CNAMEs), a negative answer, or a referral
+     * to recurse into
+     *
+     * @param zone      the zone the server that replied was asked as an authority for
+     * @param referrals how many referrals were followed to get to this server
+     */
+    private static DNS followResponse(DNSQuestion originalQuestion, DNSName zone, DNS lookedUpDns, int dnsPort, DNS dns, short q_type, Ec2PrefixTable ec2Map, ServerArgs serverArgs, int cnameHops, boolean refresh, int referrals) throws IOException {
+        // NXDOMAIN and NODATA are final answers too, not a reason to try the next server
+        if (NegativeCache.isNegative(lookedUpDns))
+            return lookedUpDns;
         // end when there are no more authorities
         if (lookedUpDns.getAnswers().size() != 0) {
             if (q_type == DNS.TYPE_A || q_type == DNS.TYPE_AAAA) {
-                List<DNSResourceRecord> crecords = resolveCNAMEs(originalQuestion, lookedUpDns, svrIp, dnsResolutionSocket, dnsPort, dns, q_type, ec2Map, serverArgs);
+                List<DNSResourceRecord> crecords = resolveCNAMEs(originalQuestion, lookedUpDns, dnsPort, dns, q_type, ec2Map, serverArgs, cnameHops, refresh);
                 for (DNSResourceRecord rr : crecords) {
                     // FIXME I just drop additional records whenever I resolve a cname. Im not sure the right thing to do
                     // FIXME but im guessing it isn't right
@@ -183,99 +600,184 @@ public class SimpleDNS {
                         lookedUpDns.getAnswers().add(rr);
                 }
             }
-            if (q_type == DNS.TYPE_A)
-                appendEC2TextRecords(lookedUpDns, ec2Map);
             return lookedUpDns;
         } else {
-            for (DNSResourceRecord rr : lookedUpDns.getAuthorities()) {
+            DelegationCache.Delegation referral = serverArgs.delegationCache.putReferral(zone, originalQuestion.getName(), lookedUpDns);
+            if (referral == null)
+                throw new RuntimeException("No answers and no authority, what do I do");
+            // not a RuntimeException, that would only send the same loop to the next server
+            if (referrals >= maxReferrals)
+                throw new IOException("More than " + maxReferrals + " referrals resolving " + originalQuestion.getName());
+            return recurQueryServers(originalQuestion, referral.zone, referral.servers, dnsPort, dns, q_type, ec2Map, serverArgs, cnameHops, refresh, referrals + 1);
+        }
+    }
+
+    /**
+     * Tries the servers of a zone fastest first until one of them leads to an answer. If every server timed out
+     * the whole list is tried again, up to upstreamRetries more times. With hedging on, the servers are raced
+     * instead of being tried one after another.
+     */
+    private static DNS recurQueryServers(DNSQuestion originalQuestion, DNSName zone, List<String> servers, int dnsPort, DNS dns, short q_type, Ec2PrefixTable ec2Map, ServerArgs serverArgs, int cnameHops, boolean refresh, int referrals) throws IOException {
+        if (serverArgs.hedgeDelayMs > 0 && servers.size() > 1) {
+            for (int attempt = 0; attempt <= upstreamRetries; attempt++) {
                 try {
-                    return recurQueryDNSServer(originalQuestion, rr.getData().toString(), dnsResolutionSocket, dnsPort, dns, q_type, ec2Map, serverArgs);
-                } catch (RuntimeException e) {
-                    System.out.println(e.getMessage());
-                    System.out.println("NS fallback");
-                    continue;
+                    DNS lookedUpDns = new HedgedQuery(originalQuestion, zone, dns, dnsPort, serverArgs).race(serverArgs.rtt.rank(servers));
+                    return followResponse(originalQuestion, zone, lookedUpDns, dnsPort, dns, q_type, ec2Map, serverArgs, cnameHops, refresh, referrals);
+                } catch (SocketTimeoutException e) {
+                    log.fine(e.getMessage());
                 }
             }
             throw new RuntimeException("No answers and no authority, what do I do");
         }
+        for (int attempt = 0; attempt <= upstreamRetries; attempt++) {
+            boolean timedOut = false;
+            for (String server : serverArgs.rtt.rank(servers)) {
+                try {
+                    return recurQueryDNSServer(originalQuestion, zone, server, dnsPort, dns, q_type, ec2Map, serverArgs, cnameHops, refresh, referrals);
+                } catch (SocketTimeoutException e) {
+                    log.fine(e.getMessage());
+                    timedOut = true;
+                } catch (RuntimeException e) {
+                    log.log(Level.FINE, "{0}, falling back on the next server", e.getMessage());
+                }
+            }
+            if (!timedOut)
+                break;
+        }
+        throw new RuntimeException("No answers and no authority, what do I do");
     }
 
-    private static void appendEC2TextRecords(DNS lookedUpDns, Map<Integer, Ec2Val> ec2) {
-        final int IP_V4_SIZE = 32;
+    private static void appendEC2TextRecords(DNS lookedUpDns, Ec2TextCache texts) {
         List<DNSResourceRecord> oldRRs = new ArrayList<DNSResourceRecord>();
         for (DNSResourceRecord rr : lookedUpDns.getAnswers()) {
-            if (rr.getType() != DNS.TYPE_CNAME)
+            if (rr.getType() == DNS.TYPE_A && rr.getData() instanceof DNSRdataAddress
+                    && ((DNSRdataAddress) rr.getData()).isIPv4())
                 oldRRs.add(rr);
         }
         for (DNSResourceRecord rr : oldRRs) {
-            Integer lookForKey = toIPv4Address(rr.getData().toString());
-            iterateThroughMask(lookedUpDns, ec2, IP_V4_SIZE, rr, lookForKey);
+            byte[] rdata = texts.get(((DNSRdataAddress) rr.getData()).getIPv4());
+            if (rdata != null)
+                lookedUpDns.getAnswers().add(generateRREc2RR(rr.getName(), rdata));
         }
     }
 
-    private static void iterateThroughMask(DNS lookedUpDns, Map<Integer, Ec2Val> ec2, int IP_V4_SIZE, DNSResourceRecord rr, Integer lookForKey) {
-        for (int i=0; i < IP_V4_SIZE; i++) {
-            int mask = (int) (Math.pow(2, i) - 1);
-            Integer maskedLookForKey = lookForKey & ~mask;
-            if (ec2.containsKey(maskedLookForKey)) {
-                lookedUpDns.getAnswers().add(generateRREc2RR(rr.getName(), lookForKey, ec2.get(maskedLookForKey)));
-                return;
-            }
-        }
-    }
-
-    private static DNSResourceRecord generateRREc2RR(String name, Integer ip, Ec2Val val) {
+    /**
+     * @param rdata the memoized TXT record data, shared so it mustn't be changed
+     */
+    private static DNSResourceRecord generateRREc2RR(DNSName name, byte[] rdata) {
         DNSResourceRecord rr = new DNSResourceRecord();
         rr.setName(name);
-        rr.setType((short) 16);
+        rr.setType(DNS.TYPE_TXT);
         rr.setTtl(0);
-        DNSRdata data = new DNSRdataString(val.location + "-" + fromIPv4Address(ip));
-        rr.setData(data);
+        rr.setData(new DNSRdataBytes(rdata));
         return rr;
     }
 
-    private static List<DNSResourceRecord> resolveCNAMEs(DNSQuestion originalQuestion, DNS lookedUpDns, String svrIp,
-                                                         DatagramSocket dnsResolutionSocket, int dnsPort, DNS dns,
-                                                         short q_type, Map<Integer, Ec2Val> ec2File, ServerArgs serverArgs) throws IOException {
+    private static List<DNSResourceRecord> resolveCNAMEs(DNSQuestion originalQuestion, DNS lookedUpDns, int dnsPort, DNS dns,
+                                                         short q_type, Ec2PrefixTable ec2File, ServerArgs serverArgs,
+                                                         int cnameHops, boolean refresh) throws IOException {
 //        then you should recursively resolve the CNAME to obtain an A or AAAA record for the CNAME
         List<DNSResourceRecord> rrResults = new ArrayList<DNSResourceRecord>();
         for (DNSResourceRecord rr : lookedUpDns.getAnswers()) {
             if (rr.getType() == DNS.TYPE_CNAME) {
+                if (cnameHops >= maxCnameHops)
+                    throw new IOException("CNAME chain from " + originalQuestion.getName() + " is longer than "
+                            + maxCnameHops + " hops");
                 DNSQuestion cnameQuestion = new DNSQuestion();
-                cnameQuestion.setName(rr.getData().toString());
+                cnameQuestion.setName(DNSName.of(rr.getData().toString()));
                 cnameQuestion.setClass(DNS.CLASS_IN);
                 cnameQuestion.setType(DNS.TYPE_A);
-                DNS result = recurQueryDNSServer(cnameQuestion, serverArgs.rootSvrIp, dnsResolutionSocket, dnsPort, dns, q_type, ec2File, serverArgs);
+                DNS result = resolveFromRoot(cnameQuestion, dnsPort, dns, q_type, serverArgs, cnameHops + 1, refresh);
                 for (DNSResourceRecord ans : result.getAnswers()) {
                     rrResults.add(ans);
                 }
+                // the chain ends in a name that doesn't exist, which the reply has to say (RFC 6604)
+                if (result.getRcode() == DNS.RCODE_NAME_ERROR) {
+                    lookedUpDns.setRcode(DNS.RCODE_NAME_ERROR);
+                    lookedUpDns.setAuthorities(new ArrayList<DNSResourceRecord>(result.getAuthorities()));
+                }
             }
         }
         return rrResults;
     }
 
-    private static DNS queryDNSServer(final DNSQuestion originalQuestion, final String rootSvrIp, DatagramSocket socket,
-                                      int dnsPort, DNS originalDns) throws IOException {
-//            how are you issuing dns requests? are you using sockets or tcp connections or dig commands?
-        byte[] buff = new byte[1518]; // what size should this be?
-        DatagramPacket pk = new DatagramPacket(buff, buff.length);
-        sendDNSRequest(generateDNSForRequest(originalQuestion, originalDns), rootSvrIp, dnsPort, socket);
-        System.out.println("Waiting for packet!");
-        socket.receive(pk);
-        DNS dns = DNS.deserialize(pk.getData(), pk.getLength());
-        System.out.println("DNS info: " + dns);
+    private static DNS queryDNSServer(final DNSQuestion originalQuestion, final String rootSvrIp, int dnsPort,
+                                      DNS originalDns, ServerArgs serverArgs) throws IOException {
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(rootSvrIp), dnsPort);
+        int timeoutMs = serverArgs.rtt.timeoutFor(rootSvrIp);
+        long sentAt = System.nanoTime();
+        CompletableFuture<DNS> response = serverArgs.upstream.query(generateDNSForRequest(originalQuestion, originalDns), server);
+        DNS dns;
+        try {
+            dns = response.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            serverArgs.upstream.cancel(response);
+            serverArgs.rtt.timedOut(rootSvrIp);
+            serverArgs.metrics.upstreamTimedOut();
+            throw new SocketTimeoutException("No reply from " + rootSvrIp + " within " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            serverArgs.upstream.cancel(response);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + rootSvrIp);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        long took = System.nanoTime() - sentAt;
+        serverArgs.rtt.responded(rootSvrIp, took / 1e6);
+        serverArgs.metrics.udpUpstreamLatency.record(took);
+        dns = completeTruncated(dns, originalQuestion, originalDns, rootSvrIp, dnsPort, serverArgs);
+        log.log(Level.FINEST, "Reply from {0}: {1}", new Object[]{rootSvrIp, dns});
         return dns;
     }
 
-    private static DNS generateDNSForRequest(DNSQuestion originalQuestion, DNS originalDns) {
+    /**
+     * A truncated UDP reply is only part of the answer, so the same server is asked again over TCP. Failing to get
+     * through counts as a timeout, so the next server gets a go.
+     *
+     * @return the reply itself if it wasn't truncated, otherwise the TCP reply
+     */
+    static DNS completeTruncated(DNS dns, DNSQuestion originalQuestion, DNS originalDns, String svrIp, int dnsPort,
+                                 ServerArgs serverArgs) throws IOException {
+        if (!dns.isTruncated())
+            return dns;
+        log.log(Level.FINE, "Truncated reply from {0}, asking again over TCP", svrIp);
+        InetSocketAddress server = new InetSocketAddress(InetAddress.getByName(svrIp), dnsPort);
+        // the handshake costs a round trip on top of the usual wait
+        int timeoutMs = 2 * serverArgs.rtt.timeoutFor(svrIp);
+        long sentAt = System.nanoTime();
+        CompletableFuture<DNS> response;
+        try {
+            response = serverArgs.tcpUpstream.query(generateDNSForRequest(originalQuestion, originalDns), server);
+        } catch (IOException e) {
+            throw new SocketTimeoutException("TCP to " + svrIp + " failed: " + e.getMessage());
+        }
+        try {
+            DNS reply = response.get(timeoutMs, TimeUnit.MILLISECONDS);
+            serverArgs.metrics.tcpUpstreamLatency.record(System.nanoTime() - sentAt);
+            return reply;
+        } catch (TimeoutException e) {
+            serverArgs.tcpUpstream.cancel(response);
+            serverArgs.metrics.upstreamTimedOut();
+            throw new SocketTimeoutException("No TCP reply from " + svrIp + " within " + timeoutMs + " ms");
+        } catch (InterruptedException e) {
+            serverArgs.tcpUpstream.cancel(response);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + svrIp);
+        } catch (ExecutionException e) {
+            throw new SocketTimeoutException("TCP to " + svrIp + " failed: " + e.getCause().getMessage());
+        }
+    }
+
+    static DNS generateDNSForRequest(DNSQuestion originalQuestion, DNS originalDns) {
         DNS dns = new DNS();
-        dns.setId(originalDns.getId());
         dns.setQuery(true);
         dns.setAuthenicated(true);
         dns.setRecursionDesired(true);
         dns.setRecursionAvailable(false);
         dns.setQuestions(new ArrayList<DNSQuestion>(Arrays.asList(originalQuestion))); // maybe change type
         dns.setAdditional(new ArrayList<DNSResourceRecord>(originalDns.getAdditional()));
+        // the client's OPT is about the client's buffers, UpstreamClient advertises its own
+        dns.removeOpt();
         return dns;
     }
 
@@ -284,7 +786,6 @@ public class SimpleDNS {
         InetAddress receiverAddress = InetAddress.getByName(svrIp);
         DatagramPacket packet = new DatagramPacket(
                 buffer, buffer.length, receiverAddress, dnsPort); // what port?
-        System.out.println("Sent DNS request packet");
         socket.send(packet);
     }
 
@@ -301,15 +802,30 @@ public class SimpleDNS {
         if (ipAddress == null)
             throw new IllegalArgumentException("Specified IPv4 address must" +
                     "contain 4 sets of numerical digits separated by periods");
-        String[] octets = ipAddress.split("\\.");
-        if (octets.length != 4)
-            throw new IllegalArgumentException("Specified IPv4 address must" +
-                    "contain 4 sets of numerical digits separated by periods");
 
+        // one pass over the characters, no split and no boxed octets
         int result = 0;
-        for (int i = 0; i < 4; ++i) {
-            result |= Integer.valueOf(octets[i]) << ((3 - i) * 8);
+        int octets = 0;
+        int octet = -1;
+        for (int i = 0; i <= ipAddress.length(); i++) {
+            char c = i < ipAddress.length() ? ipAddress.charAt(i) : '.';
+            if (c == '.') {
+                if (octet < 0 || ++octets > 4)
+                    throw new IllegalArgumentException("Specified IPv4 address must" +
+                            "contain 4 sets of numerical digits separated by periods");
+                result = (result << 8) | octet;
+                octet = -1;
+            } else if (c >= '0' && c <= '9') {
+                octet = Math.max(octet, 0) * 10 + (c - '0');
+                if (octet > 255)
+                    throw new NumberFormatException("Octet out of range in " + ipAddress);
+            } else {
+                throw new NumberFormatException("Not a digit in " + ipAddress);
+            }
         }
+        if (octets != 4)
+            throw new IllegalArgumentException("Specified IPv4 address must" +
+                    "contain 4 sets of numerical digits separated by periods");
         return result;
     }
 
@@ -323,14 +839,7 @@ public class SimpleDNS {
      * @return
      */
     public static String fromIPv4Address(int ipAddress) {
-        StringBuffer sb = new StringBuffer();
-        int result = 0;
-        for (int i = 0; i < 4; ++i) {
-            result = (ipAddress >> ((3 - i) * 8)) & 0xff;
-            sb.append(Integer.valueOf(result).toString());
-            if (i != 3)
-                sb.append(".");
-        }
-        return sb.toString();
+        char[] chars = new char[DNSRdataAddress.MAX_IPV4_CHARS];
+        return new String(chars, 0, DNSRdataAddress.formatIPv4(ipAddress, chars, 0));
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical lookups that are in flight at the same time.
+ *
+ * The first caller for a (name, type, class) does the resolution. Anyone asking for the same key meanwhile waits on
+ * its future instead of walking down from the root again, and gets their own copy of the reply, since callers go on
+ * to add records and set their client's id. When a popular name expires this keeps the herd of clients asking for it
+ * down to one query per authority.
+ *
+ * A thread never waits on a key it leads itself, which is what a CNAME loop would otherwise make it do, and waiting
+ * on another thread is bounded, as two threads can each lead a name the other one's chain runs into.
+ */
+class SingleFlight {
+    /**
+     * The resolution to share
+     */
+    interface Lookup {
+        DNS resolve() throws IOException;
+    }
+
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<DNS>> inFlight;
+    // the keys each thread's resolution chain is leading right now
+    private final ThreadLocal<Set<CacheKey>> leading;
+    private final long maxWaitMs;
+    private final AtomicLong coalesced;
+
+    /**
+     * @param maxWaitMs longest a caller waits on somebody else's lookup before giving up on it
+     */
+    SingleFlight(long maxWaitMs) {
+        this.inFlight = new ConcurrentHashMap<CacheKey, CompletableFuture<DNS>>();
+        this.leading = new ThreadLocal<Set<CacheKey>>() {
+            @Override
+            protected Set<CacheKey> initialValue() {
+                return new HashSet<CacheKey>();
+            }
+        };
+        this.maxWaitMs = maxWaitMs;
+        this.coalesced = new AtomicLong();
+    }
+
+    DNS run(CacheKey key, Lookup lookup) throws IOException {
+        Set<CacheKey> mine = leading.get();
+        // already leading it further up this thread's chain, the caller's hop limits end the loop
+        if (mine.contains(key))
+            return lookup.resolve();
+        CompletableFuture<DNS> future = new CompletableFuture<DNS>();
+        CompletableFuture<DNS> leader = inFlight.putIfAbsent(key, future);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            return await(leader).copy();
+        }
+        mine.add(key);
+        try {
+            DNS dns = lookup.resolve();
+            // waiters copy from a snapshot, the caller is free to change its own reply
+            future.complete(dns.copy());
+            return dns;
+        } catch (Throwable e) {
+            // errors too, or the waiters would be left hanging
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            mine.remove(key);
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * @return how many lookups were answered by waiting on someone else's
+     */
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private DNS await(CompletableFuture<DNS> leader) throws IOException {
+        try {
+            return leader.get(maxWaitMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("Coalesced lookup still running after " + maxWaitMs + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a coalesced lookup");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+}
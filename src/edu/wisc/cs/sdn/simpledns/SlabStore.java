@@ -0,0 +1,352 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNSName;
+import edu.wisc.cs.sdn.simpledns.packet.DNSWriter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap storage for the answer cache. Every answer set is kept in wire form in fixed size slabs of direct memory
+ * and found through an open addressing index made of two primitive arrays, so however many entries there are the heap
+ * only holds the slabs' buffer objects and the index, and the collector has next to nothing to trace.
+ *
+ * Slabs fill up one after the other like a ring. Once the ring is full the oldest slab is recycled: entries in it
+ * that were looked up since it was last recycled, and haven't run out for good, get a second chance and are moved to
+ * its front, everything else in it is evicted. Entries that are replaced or removed leave their bytes behind until
+ * their slab comes round again.
+ *
+ * An entry is addressed by a ref, its slab number plus one in the high int and its offset in the low one, so 0 is
+ * never a ref. Not thread safe, the owning cache's lock guards it.
+ */
+class SlabStore {
+    // holds the largest answer set a message can carry, many times over
+    static final int SLAB_SIZE = 1 << 20;
+    // one to fill while the oldest is recycled
+    static final int MIN_SLABS = 2;
+    static final long MIN_CAPACITY = (long) MIN_SLABS * SLAB_SIZE;
+
+    // a record is the key's hash, the key's length and the key (name, type, class), then from the end of the key:
+    private static final int KEY = 6;
+    private static final int INSERTED_AT = 0;
+    private static final int EXPIRES_AT = 8;
+    private static final int FLAGS = 16;
+    private static final int WIRE_LENGTH = 17;
+    private static final int WIRE = 21;
+
+    private static final byte REFERENCED = 1;
+    private static final byte PREFETCHING = 2;
+
+    /**
+     * Gets handed every entry still in the store, see forEach
+     */
+    interface Visitor {
+        void visit(CacheKey key, long insertedAt, long expiresAt, byte[] wire);
+    }
+
+    private final ByteBuffer[] slabs;
+    // one reusable view per slab for bulk copies, so copying doesn't move the slab's own position
+    private final ByteBuffer[] views;
+    // where the records in each slab end
+    private final int[] ends;
+    private final long graceMs;
+    // records are moved through this a piece at a time
+    private final byte[] scratch = new byte[4096];
+    private int current;
+
+    // the index, a slot is free when its ref is 0
+    private int[] hashes = new int[1024];
+    private long[] refs = new long[1024];
+    private int size;
+    private long evictions;
+
+    /**
+     * @param capacityBytes off-heap memory to use, at least MIN_CAPACITY, rounded down to whole slabs
+     * @param graceMs       how long past its expiry an entry is still worth keeping
+     */
+    SlabStore(long capacityBytes, long graceMs) {
+        if (capacityBytes < MIN_CAPACITY)
+            throw new IllegalArgumentException("Off-heap store needs at least " + MIN_CAPACITY + " bytes, got "
+                    + capacityBytes);
+        int count = (int) Math.min(Integer.MAX_VALUE, capacityBytes / SLAB_SIZE);
+        this.slabs = new ByteBuffer[count];
+        this.views = new ByteBuffer[count];
+        this.ends = new int[count];
+        this.graceMs = graceMs;
+        recycle(0, 0);
+    }
+
+    /**
+     * Looks the key up and marks the entry as used, which keeps it when its slab is recycled
+     *
+     * @return the entry's ref, or 0 if there isn't one
+     */
+    long find(LookupKey key) {
+        int hash = hash(key);
+        int mask = refs.length - 1;
+        for (int slot = hash & mask; refs[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == hash && matches(refs[slot], key)) {
+                ByteBuffer slab = slab(refs[slot]);
+                int flags = valueAt(refs[slot]) + FLAGS;
+                slab.put(flags, (byte) (slab.get(flags) | REFERENCED));
+                return refs[slot];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stores an answer set, replacing any entry for the key
+     *
+     * @return false if the answers are too big to store
+     */
+    boolean put(CacheKey key, long insertedAt, long expiresAt, byte[] wire) {
+        int keyLength = key.name.getWireLength() + 4;
+        int length = KEY + keyLength + WIRE + wire.length;
+        if (length > SLAB_SIZE)
+            return false;
+        long old = find(key);
+        if (old != 0)
+            remove(old);
+
+        long ref = allocate(length);
+        ByteBuffer slab = slab(ref);
+        int hash = hash(key);
+        slab.position(offset(ref));
+        slab.putInt(hash).putShort((short) keyLength);
+        key.name.putWire(slab);
+        slab.putShort(key.type).putShort(key.cls).putLong(insertedAt).putLong(expiresAt).put((byte) 0)
+                .putInt(wire.length).put(wire);
+        insert(hash, ref);
+        return true;
+    }
+
+    void remove(long ref) {
+        int slot = slotOf(ref);
+        if (slot >= 0)
+            delete(slot);
+    }
+
+    long getInsertedAt(long ref) {
+        return slab(ref).getLong(valueAt(ref) + INSERTED_AT);
+    }
+
+    long getExpiresAt(long ref) {
+        return slab(ref).getLong(valueAt(ref) + EXPIRES_AT);
+    }
+
+    boolean isPrefetching(long ref) {
+        return (slab(ref).get(valueAt(ref) + FLAGS) & PREFETCHING) != 0;
+    }
+
+    void setPrefetching(long ref) {
+        int flags = valueAt(ref) + FLAGS;
+        slab(ref).put(flags, (byte) (slab(ref).get(flags) | PREFETCHING));
+    }
+
+    /**
+     * @return a copy of the entry's answers in wire form
+     */
+    byte[] getWire(long ref) {
+        ByteBuffer view = wireView(ref);
+        byte[] wire = new byte[view.remaining()];
+        view.get(wire);
+        return wire;
+    }
+
+    /**
+     * Copies the entry's answers straight into a message being written
+     */
+    void writeWire(long ref, DNSWriter out) {
+        out.put(wireView(ref));
+    }
+
+    /**
+     * Visits every entry, oldest slab first
+     */
+    void forEach(Visitor visitor) {
+        for (int i = 1; i <= slabs.length; i++) {
+            int s = (current + i) % slabs.length;
+            ByteBuffer slab = slabs[s];
+            for (int offset = 0; offset < ends[s]; offset += recordLength(slab, offset)) {
+                long ref = ref(s, offset);
+                if (slotOf(ref) < 0)
+                    continue;
+                int value = valueAt(ref);
+                DNSName name = DNSName.read(slab, offset + KEY);
+                CacheKey key = new CacheKey(name, slab.getShort(value - 4), slab.getShort(value - 2));
+                visitor.visit(key, getInsertedAt(ref), getExpiresAt(ref), getWire(ref));
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    long getEvictions() {
+        return evictions;
+    }
+
+    private boolean matches(long ref, LookupKey key) {
+        ByteBuffer slab = slab(ref);
+        int offset = offset(ref);
+        return key.matchesWire(slab, offset + KEY, (slab.getShort(offset + 4) & 0xffff) - 4);
+    }
+
+    /**
+     * Finds room for a record, recycling the oldest slab when the current one is full
+     */
+    private long allocate(int length) {
+        if (ends[current] + length > SLAB_SIZE) {
+            current = (current + 1) % slabs.length;
+            recycle(current, length);
+        }
+        long ref = ref(current, ends[current]);
+        ends[current] += length;
+        return ref;
+    }
+
+    /**
+     * Empties a slab for reuse, keeping the entries that earned a second chance while leaving needed bytes free
+     */
+    private void recycle(int s, int needed) {
+        if (slabs[s] == null) {
+            slabs[s] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            views[s] = slabs[s].duplicate();
+            return;
+        }
+        ByteBuffer slab = slabs[s];
+        long now = System.currentTimeMillis();
+        int kept = 0;
+        for (int offset = 0; offset < ends[s]; ) {
+            int length = recordLength(slab, offset);
+            int slot = slotOf(ref(s, offset));
+            if (slot >= 0) {
+                // from the start of the record, so it holds after the record has moved
+                int flags = valueAt(ref(s, offset)) - offset + FLAGS;
+                int expiresAt = valueAt(ref(s, offset)) + EXPIRES_AT;
+                boolean survives = (slab.get(offset + flags) & REFERENCED) != 0
+                        && now < slab.getLong(expiresAt) + graceMs && kept + length <= SLAB_SIZE - needed;
+                if (survives) {
+                    // only ever moves towards the front, over records that have been dealt with already, so
+                    // copying front to back never overwrites a piece before it has been read
+                    for (int moved = 0; kept != offset && moved < length; moved += scratch.length) {
+                        int piece = Math.min(scratch.length, length - moved);
+                        slab.position(offset + moved);
+                        slab.get(scratch, 0, piece);
+                        slab.position(kept + moved);
+                        slab.put(scratch, 0, piece);
+                    }
+                    slab.put(kept + flags, (byte) (slab.get(kept + flags) & ~REFERENCED));
+                    refs[slot] = ref(s, kept);
+                    kept += length;
+                } else {
+                    delete(slot);
+                    evictions++;
+                }
+            }
+            offset += length;
+        }
+        ends[s] = kept;
+    }
+
+    private void insert(int hash, long ref) {
+        if ((size + 1) * 2 > refs.length)
+            grow();
+        int mask = refs.length - 1;
+        int slot = hash & mask;
+        while (refs[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashes[slot] = hash;
+        refs[slot] = ref;
+        size++;
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        long[] oldRefs = refs;
+        hashes = new int[oldRefs.length * 2];
+        refs = new long[oldRefs.length * 2];
+        int mask = refs.length - 1;
+        for (int i = 0; i < oldRefs.length; i++) {
+            if (oldRefs[i] == 0)
+                continue;
+            int slot = oldHashes[i] & mask;
+            while (refs[slot] != 0)
+                slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            refs[slot] = oldRefs[i];
+        }
+    }
+
+    /**
+     * Empties a slot and shifts back the entries after it that would no longer be found, so probing never needs
+     * tombstones
+     */
+    private void delete(int slot) {
+        int mask = refs.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; refs[next] != 0; next = (next + 1) & mask) {
+            int home = hashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashes[hole] = hashes[next];
+                refs[hole] = refs[next];
+                hole = next;
+            }
+        }
+        hashes[hole] = 0;
+        refs[hole] = 0;
+        size--;
+    }
+
+    /**
+     * @return the index slot holding ref, or -1 if the record at ref isn't indexed anymore
+     */
+    private int slotOf(long ref) {
+        int mask = refs.length - 1;
+        for (int slot = slab(ref).getInt(offset(ref)) & mask; refs[slot] != 0; slot = (slot + 1) & mask) {
+            if (refs[slot] == ref)
+                return slot;
+        }
+        return -1;
+    }
+
+    private ByteBuffer wireView(long ref) {
+        int value = valueAt(ref);
+        ByteBuffer view = views[(int) (ref >>> 32) - 1];
+        view.clear();
+        view.position(value + WIRE);
+        view.limit(value + WIRE + slab(ref).getInt(value + WIRE_LENGTH));
+        return view;
+    }
+
+    /**
+     * @return where the record's fields after its key start
+     */
+    private int valueAt(long ref) {
+        int offset = offset(ref);
+        return offset + KEY + (slab(ref).getShort(offset + 4) & 0xffff);
+    }
+
+    private static int recordLength(ByteBuffer slab, int offset) {
+        int value = offset + KEY + (slab.getShort(offset + 4) & 0xffff);
+        return value - offset + WIRE + slab.getInt(value + WIRE_LENGTH);
+    }
+
+    private ByteBuffer slab(long ref) {
+        return slabs[(int) (ref >>> 32) - 1];
+    }
+
+    private static int offset(long ref) {
+        return (int) ref;
+    }
+
+    private static long ref(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int hash(LookupKey key) {
+        int h = key.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,210 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * TCP listener next to the UDP one, so clients that got a truncated reply can ask again (RFC 7766).
+ *
+ * Every connection has a reader thread that reads the length-prefixed queries straight into pooled buffers. Cache
+ * hits are answered right away and misses go to the worker pool, so queries pipelined on one connection are resolved
+ * side by side and answered as they finish, in whatever order that is. Connections with nothing in flight are
+ * closed after IDLE_TIMEOUT_MS, and past MAX_CONNECTIONS new ones are turned away.
+ */
+class TcpFrontEnd {
+    private static final Logger log = Logger.getLogger(TcpFrontEnd.class.getName());
+    private static final int MAX_MESSAGE = 65535;
+    private static final int MAX_CONNECTIONS = 256;
+    private static final long IDLE_TIMEOUT_MS = 10000;
+
+    private final int port;
+    private final ExecutorService workers;
+    private final SimpleDNS.ServerArgs serverArgs;
+    // room for the length prefix too, so a reply is framed and written in one go
+    private final BufferPool buffers;
+    private final Set<Connection> connections;
+
+    TcpFrontEnd(int port, ExecutorService workers, SimpleDNS.ServerArgs serverArgs) {
+        this.port = port;
+        this.workers = workers;
+        this.serverArgs = serverArgs;
+        this.buffers = new BufferPool(MAX_MESSAGE + 2, 0);
+        this.connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    }
+
+    /**
+     * Binds the listener and starts the accept and idle reaper threads
+     */
+    void start() throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                accept(server);
+            }
+        }, "tcp-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread reaper = new Thread(new Runnable() {
+            public void run() {
+                reapIdle();
+            }
+        }, "tcp-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    private void accept(ServerSocketChannel server) {
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                if (connections.size() >= MAX_CONNECTIONS) {
+                    channel.close();
+                    continue;
+                }
+                channel.socket().setTcpNoDelay(true);
+                Connection connection = new Connection(channel);
+                connections.add(connection);
+                Thread t = new Thread(connection, "tcp-client-" + next++);
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                log.log(Level.SEVERE, "TCP listener stopped", e);
+                return;
+            }
+        }
+    }
+
+    private void reapIdle() {
+        while (true) {
+            try {
+                Thread.sleep(IDLE_TIMEOUT_MS / 4);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Connection connection : connections) {
+                if (connection.inFlight.get() == 0 && now - connection.lastActive > IDLE_TIMEOUT_MS)
+                    connection.close();
+            }
+        }
+    }
+
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final AtomicInteger inFlight;
+        private volatile long lastActive;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.inFlight = new AtomicInteger();
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        public void run() {
+            ByteBuffer length = ByteBuffer.allocate(2);
+            try {
+                while (true) {
+                    length.clear();
+                    readFully(length);
+                    DNS query;
+                    long receivedAt = System.nanoTime();
+                    ByteBuffer rx = buffers.acquire();
+                    try {
+                        rx.limit(length.getShort(0) & 0xffff);
+                        readFully(rx);
+                        rx.flip();
+                        query = DNS.deserialize(rx);
+                    } finally {
+                        buffers.release(rx);
+                    }
+                    lastActive = System.currentTimeMillis();
+                    if (query.getOpcode() == DNS.OPCODE_STANDARD_QUERY)
+                        handle(query, receivedAt);
+                }
+            } catch (EOFException e) {
+                // the client is done
+            } catch (IOException e) {
+                // closed by the reaper, or by the client mid-message
+            } catch (RuntimeException e) {
+                // framing can't be trusted after a bad message, so the connection goes
+                log.log(Level.FINE, "Dropping TCP client: {0}", e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(final DNS query, final long receivedAt) throws IOException {
+            DNS cached = SimpleDNS.answerFromCache(query, serverArgs);
+            if (cached != null) {
+                reply(cached, query, receivedAt);
+                return;
+            }
+            inFlight.incrementAndGet();
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        reply(SimpleDNS.handleQuestionsOrFail(query, serverArgs), query, receivedAt);
+                    } catch (IOException e) {
+                        // the connection is gone, nothing to answer
+                        serverArgs.metrics.dropped();
+                    } catch (RuntimeException e) {
+                        serverArgs.metrics.dropped();
+                        log.log(Level.FINE, "Dropping query: {0}", e.getMessage());
+                    } finally {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            });
+        }
+
+        private void reply(DNS dns, DNS query, long receivedAt) throws IOException {
+            SimpleDNS.finishReply(dns, query, serverArgs, true);
+            ByteBuffer tx = buffers.acquire();
+            try {
+                tx.putShort((short) 0);
+                dns.serialize(tx);
+                tx.putShort(0, (short) (tx.position() - 2));
+                tx.flip();
+                // replies from different workers mustn't interleave
+                synchronized (this) {
+                    while (tx.hasRemaining())
+                        channel.write(tx);
+                }
+                lastActive = System.currentTimeMillis();
+                serverArgs.metrics.answered(query, dns, receivedAt);
+            } finally {
+                buffers.release(tx);
+            }
+        }
+
+        private void readFully(ByteBuffer bb) throws IOException {
+            while (bb.hasRemaining()) {
+                if (channel.read(bb) < 0)
+                    throw new EOFException();
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client for upstream queries over TCP, used when a UDP reply came back truncated.
+ *
+ * Connections are reused and pipelined like RFC 7766 asks: each server has one connection that any number of
+ * queries can be in flight on at once, each with its own transaction ID, and a reader thread matches responses back
+ * by ID in whatever order they come. A connection that has nothing pending for IDLE_TIMEOUT_MS is closed. One that
+ * fails fails its pending queries with it, and the next query to that server opens a fresh one.
+ */
+class TcpUpstreamClient {
+    private static final Logger log = Logger.getLogger(TcpUpstreamClient.class.getName());
+    private static final int IDLE_TIMEOUT_MS = 10000;
+
+    private final int connectTimeoutMs;
+    private final SecureRandom random;
+    private final ConcurrentHashMap<InetSocketAddress, Connection> connections;
+
+    TcpUpstreamClient(int connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.random = new SecureRandom();
+        this.connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+    }
+
+    /**
+     * Sends the query with a fresh transaction ID, connecting first if there is no open connection to the server.
+     * The future completes when the matching response arrives.
+     */
+    CompletableFuture<DNS> query(DNS request, InetSocketAddress server) throws IOException {
+        Connection connection = connections.get(server);
+        if (connection == null) {
+            Connection fresh = new Connection(server);
+            connection = connections.putIfAbsent(server, fresh);
+            if (connection == null)
+                connection = fresh;
+        }
+        return connection.send(request);
+    }
+
+    /**
+     * Forgets a query that is no longer waited on, e.g. after a timeout
+     */
+    void cancel(CompletableFuture<DNS> future) {
+        if (future instanceof PendingQuery) {
+            PendingQuery query = (PendingQuery) future;
+            query.connection.pending.remove(query.id, query);
+        }
+        future.cancel(false);
+    }
+
+    private class Connection implements Runnable {
+        private final InetSocketAddress server;
+        private final ConcurrentHashMap<Short, PendingQuery> pending;
+        // guarded by this, null while not connected
+        private Socket socket;
+        private DataOutputStream out;
+
+        Connection(InetSocketAddress server) {
+            this.server = server;
+            this.pending = new ConcurrentHashMap<Short, PendingQuery>();
+        }
+
+        synchronized CompletableFuture<DNS> send(DNS request) throws IOException {
+            // closed for being idle or failed, either way this query gets a connection of its own
+            if (socket == null || socket.isClosed())
+                connect();
+            PendingQuery future;
+            do {
+                future = new PendingQuery(this, (short) random.nextInt());
+            } while (pending.putIfAbsent(future.id, future) != null);
+            request.setId(future.id);
+
+            byte[] message = request.serialize();
+            try {
+                out.writeShort(message.length);
+                out.write(message);
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(future.id);
+                close(socket, e);
+                throw e;
+            }
+            return future;
+        }
+
+        private void connect() throws IOException {
+            Socket s = new Socket();
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(IDLE_TIMEOUT_MS);
+            s.connect(server, connectTimeoutMs);
+            socket = s;
+            out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+            Thread t = new Thread(this, "tcp-upstream-" + server);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        /**
+         * Reads responses until the connection goes idle or fails
+         */
+        public void run() {
+            Socket s;
+            synchronized (this) {
+                s = socket;
+            }
+            byte[] buff = new byte[65535];
+            try {
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        if (closeIfIdle(s))
+                            return;
+                        continue;
+                    }
+                    in.readFully(buff, 0, length);
+                    try {
+                        DNS dns = DNS.deserialize(buff, length);
+                        PendingQuery future = pending.remove(dns.getId());
+                        if (future != null)
+                            future.complete(dns);
+                    } catch (RuntimeException e) {
+                        log.log(Level.FINE, "Dropping upstream TCP response: {0}", e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
+                close(s, e);
+            }
+        }
+
+        /**
+         * Closes the socket if nothing is waiting on it. Checked under the same lock send registers queries under,
+         * so a query sent meanwhile either keeps the connection open or gets a new one.
+         *
+         * @return true if it was closed
+         */
+        private synchronized boolean closeIfIdle(Socket s) {
+            if (!pending.isEmpty())
+                return false;
+            close(s, new IOException("Idle connection to " + server + " closed"));
+            return true;
+        }
+
+        /**
+         * Closes the socket if it is still the current one and fails everything waiting on it
+         */
+        private synchronized void close(Socket s, IOException cause) {
+            if (socket != s)
+                return;
+            socket = null;
+            out = null;
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+            for (PendingQuery future : pending.values())
+                future.completeExceptionally(cause);
+            pending.clear();
+        }
+    }
+
+    private static class PendingQuery extends CompletableFuture<DNS> {
+        final Connection connection;
+        final short id;
+
+        PendingQuery(Connection connection, short id) {
+            this.connection = connection;
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package edu.wisc.cs.sdn.simpledns;
+
+import edu.wisc.cs.sdn.simpledns.packet.DNS;
+import edu.wisc.cs.sdn.simpledns.packet.DNSQuestion;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared client for queries to upstream servers.
+ *
+ * Queries go out over a small pool of sockets bound to random unprivileged ports, each tagged with a random
+ * transaction ID. A receiver thread per socket matches responses back to the pending future by (server, id,
+ * question), so any number of recursive resolutions can have queries in flight over the same sockets. Responses
+ * that don't match anything pending are dropped. Every query advertises the receive buffer size with EDNS0, so
+ * upstreams don't cut answers down to 512 bytes.
+ */
+class UpstreamClient {
+    private static final Logger log = Logger.getLogger(UpstreamClient.class.getName());
+
+    private final DatagramSocket[] sockets;
+    private final AtomicInteger nextSocket;
+    private final SecureRandom random;
+    private final ConcurrentHashMap<PendingKey, PendingQuery> pending;
+    private final int bufferSize;
+
+    UpstreamClient(int socketCount, int bufferSize) throws IOException {
+        this.sockets = new DatagramSocket[socketCount];
+        this.nextSocket = new AtomicInteger();
+        this.random = new SecureRandom();
+        this.pending = new ConcurrentHashMap<PendingKey, PendingQuery>();
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < socketCount; i++) {
+            // no port given, so the OS picks a random ephemeral one
+            sockets[i] = new DatagramSocket();
+            Thread t = new Thread(new Receiver(sockets[i]), "upstream-receiver-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Sends the query with a fresh transaction ID. The future completes when the matching response arrives.
+     */
+    CompletableFuture<DNS> query(DNS request, InetSocketAddress server) throws IOException {
+        DNSQuestion q = request.getQuestions().get(0);
+        PendingQuery future;
+        do {
+            future = new PendingQuery(new PendingKey(server, (short) random.nextInt(), new CacheKey(q)));
+        } while (pending.putIfAbsent(future.key, future) != null);
+        request.setId(future.key.id);
+        request.setUdpPayloadSize(bufferSize);
+
+        byte[] buffer = request.serialize();
+        DatagramSocket socket = sockets[(nextSocket.getAndIncrement() & Integer.MAX_VALUE) % sockets.length];
+        try {
+            socket.send(new DatagramPacket(buffer, buffer.length, server));
+        } catch (IOException e) {
+            pending.remove(future.key);
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Forgets a query that is no longer waited on, e.g. after a timeout
+     */
+    void cancel(CompletableFuture<DNS> future) {
+        if (future instanceof PendingQuery)
+            pending.remove(((PendingQuery) future).key, future);
+        future.cancel(false);
+    }
+
+    private class Receiver implements Runnable {
+        private final DatagramSocket socket;
+
+        Receiver(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        public void run() {
+            byte[] buff = new byte[bufferSize];
+            DatagramPacket pk = new DatagramPacket(buff, buff.length);
+            while (true) {
+                try {
+                    pk.setLength(buff.length);
+                    socket.receive(pk);
+                    DNS dns = DNS.deserialize(pk.getData(), pk.getLength());
+                    if (dns.getQuestions().isEmpty())
+                        continue;
+                    PendingKey key = new PendingKey((InetSocketAddress) pk.getSocketAddress(), dns.getId(),
+                            new CacheKey(dns.getQuestions().get(0)));
+                    PendingQuery future = pending.remove(key);
+                    if (future != null)
+                        future.complete(dns);
+                } catch (IOException e) {
+                    log.log(Level.SEVERE, "Upstream receiver stopped", e);
+                    return;
+                } catch (RuntimeException e) {
+                    log.log(Level.FINE, "Dropping upstream response: {0}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static class PendingQuery extends CompletableFuture<DNS> {
+        final PendingKey key;
+
+        PendingQuery(PendingKey key) {
+            this.key = key;
+        }
+    }
+
+    private static class PendingKey {
+        final InetSocketAddress server;
+        final short id;
+        final CacheKey question;
+
+        PendingKey(InetSocketAddress server, short id, CacheKey question) {
+            this.server = server;
+            this.id = id;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey))
+                return false;
+            PendingKey other = (PendingKey) o;
+            return id == other.id && server.equals(other.server) && question.equals(other.question);
+        }
+
+        @Override
+        public int hashCode() {
+            return (server.hashCode() * 31 + id) * 31 + question.hashCode();
+        }
+    }
+}
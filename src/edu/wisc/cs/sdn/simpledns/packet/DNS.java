@@ -1,7 +1,6 @@
 package edu.wisc.cs.sdn.simpledns.packet;
 
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -10,7 +9,10 @@ public class DNS
 	public static final short TYPE_A = 1;
 	public static final short TYPE_NS = 2;
 	public static final short TYPE_CNAME = 5;
+	public static final short TYPE_SOA = 6;
+	public static final short TYPE_TXT = 16;
 	public static final short TYPE_AAAA = 28;
+	public static final short TYPE_OPT = 41;
 	public static final short TYPE_CDN = 258;
 	public static final short TYPE_EC2 = 259;
 	
@@ -20,7 +22,13 @@ public class DNS
 	
 	public static final byte RCODE_NO_ERROR = 0;
 	public static final byte RCODE_FORMAT_ERROR = 1;
+	public static final byte RCODE_SERVER_FAILURE = 2;
+	public static final byte RCODE_NAME_ERROR = 3;
 	public static final byte RCODE_NOT_IMPLEMENTED = 4;
+	public static final byte RCODE_REFUSED = 5;
+	
+	/** Largest UDP message a peer without EDNS0 can take */
+	public static final int MIN_UDP_PAYLOAD = 512;
 	
 	private short id;
 	private boolean query;
@@ -155,10 +163,112 @@ public class DNS
 	public void removeAdditional(DNSResourceRecord additional)
 	{ this.additional.remove(additional); }
 	
+	/**
+	 * @return a copy with its own section lists, so records can be added or
+	 * dropped without touching this one. The records themselves are shared.
+	 */
+	public DNS copy()
+	{
+		DNS dns = new DNS();
+		dns.id = this.id;
+		dns.query = this.query;
+		dns.opcode = this.opcode;
+		dns.authoritative = this.authoritative;
+		dns.truncated = this.truncated;
+		dns.recursionDesired = this.recursionDesired;
+		dns.recursionAvailable = this.recursionAvailable;
+		dns.authenticated = this.authenticated;
+		dns.checkingDisabled = this.checkingDisabled;
+		dns.rcode = this.rcode;
+		dns.questions.addAll(this.questions);
+		dns.answers.addAll(this.answers);
+		dns.authorities.addAll(this.authorities);
+		dns.additional.addAll(this.additional);
+		return dns;
+	}
+	
+	/**
+	 * @return the EDNS0 OPT pseudo-record in the additional section, null if
+	 * the message doesn't use EDNS0
+	 */
+	public DNSResourceRecord getOpt()
+	{
+		for (DNSResourceRecord record : this.additional)
+		{
+			if (record.getType() == TYPE_OPT)
+			{ return record; }
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the largest UDP message the sender can take, which its OPT
+	 * record carries in the class field (RFC 6891)
+	 */
+	public int getUdpPayloadSize()
+	{
+		DNSResourceRecord opt = this.getOpt();
+		if (opt == null)
+		{ return MIN_UDP_PAYLOAD; }
+		return Math.max(MIN_UDP_PAYLOAD, opt.getCls() & 0xffff);
+	}
+	
+	/**
+	 * Advertises a UDP payload size with a fresh OPT record, in place of any
+	 * OPT record the message had.
+	 */
+	public void setUdpPayloadSize(int size)
+	{
+		this.removeOpt();
+		DNSResourceRecord opt = new DNSResourceRecord(DNSName.ROOT, TYPE_OPT,
+				new DNSRdataBytes());
+		opt.setClass((short)size);
+		this.additional.add(opt);
+	}
+	
+	public void removeOpt()
+	{
+		// copied rather than changed in place, the list may be shared
+		List<DNSResourceRecord> kept = new ArrayList<DNSResourceRecord>();
+		for (DNSResourceRecord record : this.additional)
+		{
+			if (record.getType() != TYPE_OPT)
+			{ kept.add(record); }
+		}
+		this.additional = kept;
+	}
+	
+	/**
+	 * Drops records until the message fits in size bytes. The additional
+	 * section goes first, bar the OPT record. If the message still doesn't
+	 * fit, the answer and authority sections go too and it is marked
+	 * truncated, so the client knows to retry over TCP.
+	 */
+	public void truncate(int size)
+	{
+		if (this.getLength() <= size)
+		{ return; }
+		DNSResourceRecord opt = this.getOpt();
+		this.additional = new ArrayList<DNSResourceRecord>();
+		if (opt != null)
+		{ this.additional.add(opt); }
+		if (this.getLength() <= size)
+		{ return; }
+		this.answers = new ArrayList<DNSResourceRecord>();
+		this.authorities = new ArrayList<DNSResourceRecord>();
+		this.truncated = true;
+	}
+	
 	public static DNS deserialize(byte[] data, int length)
+	{ return DNS.deserialize(ByteBuffer.wrap(data, 0, length)); }
+	
+	/**
+	 * Reads a message that starts at position 0 of the buffer, compression
+	 * pointers are offsets from there.
+	 */
+	public static DNS deserialize(ByteBuffer bb)
 	{
 		DNS dns = new DNS();
-		ByteBuffer bb = ByteBuffer.wrap(data, 0, length);
 		
 		dns.id = bb.getShort();
 		
@@ -198,8 +308,20 @@ public class DNS
 	public byte[] serialize()
 	{
 		byte[] data = new byte[this.getLength()];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.putShort(this.id);
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * Writes the message into the buffer at its current position, with
+	 * names compressed.
+	 */
+	public void serialize(ByteBuffer bb)
+	{ this.serialize(new DNSCompressor(bb)); }
+	
+	private void serialize(DNSCompressor out)
+	{
+		out.putShort(this.id);
 		
 		byte tmp = 0;
 		tmp |= (byte)(this.query ? 0 : (1 << 7));
@@ -207,44 +329,38 @@ public class DNS
 		tmp |= (byte)(this.authoritative ? (1 << 2) : 0);
 		tmp |= (byte)(this.truncated ? (1 << 1) : 0);
 		tmp |= (byte)(this.recursionDesired ? 1 : 0);
-		bb.put(tmp);
+		out.put(tmp);
 		
 		tmp = 0;
 		tmp |= (byte)(this.recursionAvailable ? (1 << 7) : 0);
 		tmp |= (byte)(this.authenticated ? (1 << 5) : 0);
 		tmp |= (byte)(this.checkingDisabled ? (1 << 4) : 0);
 		tmp |= (byte)(this.rcode & 0b00001111);
-		bb.put(tmp);
+		out.put(tmp);
 		
-		bb.putShort((short)(this.questions.size()));
-		bb.putShort((short)(this.answers.size()));
-		bb.putShort((short)(this.authorities.size()));
-		bb.putShort((short)(this.additional.size()));
+		out.putShort((short)(this.questions.size()));
+		out.putShort((short)(this.answers.size()));
+		out.putShort((short)(this.authorities.size()));
+		out.putShort((short)(this.additional.size()));
 		
 		for (DNSQuestion question : this.questions)
-		{ bb.put(question.serialize()); }
+		{ question.serialize(out); }
 		for (DNSResourceRecord record : this.answers)
-		{ bb.put(record.serialize()); }
+		{ record.serialize(out); }
 		for (DNSResourceRecord record : this.authorities)
-		{ bb.put(record.serialize()); }
+		{ record.serialize(out); }
 		for (DNSResourceRecord record : this.additional)
-		{ bb.put(record.serialize()); }
-		
-		return data;
+		{ record.serialize(out); }
 	}
 	
+	/**
+	 * @return the size of the message with names compressed
+	 */
 	public int getLength()
 	{
-		int length = 12;
-		for (DNSQuestion question : this.questions)
-		{ length += question.getLength(); }
-		for (DNSResourceRecord record : this.answers)
-		{ length += record.getLength(); }
-		for (DNSResourceRecord record : this.authorities)
-		{ length += record.getLength(); }
-		for (DNSResourceRecord record : this.additional)
-		{ length += record.getLength(); }
-		return length;
+		DNSCompressor counter = new DNSCompressor();
+		this.serialize(counter);
+		return counter.getLength();
 	}
 	
 	public String toString()
@@ -269,9 +385,18 @@ public class DNS
 		case DNS.RCODE_FORMAT_ERROR:
 			strRcode = "Format error";
 			break;
+		case DNS.RCODE_SERVER_FAILURE:
+			strRcode = "Server failure";
+			break;
+		case DNS.RCODE_NAME_ERROR:
+			strRcode = "Name error";
+			break;
 		case DNS.RCODE_NOT_IMPLEMENTED:
 			strRcode = "Not implemented";
 			break;
+		case DNS.RCODE_REFUSED:
+			strRcode = "Refused";
+			break;
 		default:
 			strRcode = String.format("Unknown (%d)", this.rcode);
 			break;
@@ -297,64 +422,9 @@ public class DNS
 		return result;
 	}
 	
-	public static String deserializeName(ByteBuffer bb)
-	{
-		String name = new String();
-		
-		// Continue while there is another label, or a pointer
-		byte labelLength = bb.get();
-		while ((labelLength > 0) 
-				|| ((labelLength & 0b11000000) == 0b11000000))
-		{
-			if ((labelLength & 0b11000000) == 0b11000000)
-			{
-				// Reader pointer
-				bb.position(bb.position()-1);
-				short ptr = (short)(bb.getShort() & 0b0011111111111111);
-				
-				// Go to pointer, saving place to return
-				int returnPtr = bb.position();
-				bb.position(ptr);
-				
-				name += "." + DNS.deserializeName(bb);
-				
-				// Return to location after pointer
-				bb.position(returnPtr);
-				break;
-			}
-			else
-			{
-				byte[] labelBytes = new byte[labelLength];
-				bb.get(labelBytes);
-				name += "." 
-						+ new String(labelBytes, StandardCharsets.US_ASCII);
-			}
-			labelLength = bb.get();
-		}
-		
-		// Remove leading period
-		if (name.length() > 0)
-		{ name = name.substring(1); }
-		
-		return name;
-	}
+	public static DNSName deserializeName(ByteBuffer bb)
+	{ return DNSName.deserialize(bb); }
 	
-	public static byte[] serializeName(String name)
-	{
-		byte[] data = new byte[name.length() + 1 + (name.length() > 0 ? 1 : 0)];
-		ByteBuffer bb = ByteBuffer.wrap(data);
-		
-		if (name.length() > 0)
-		{
-			String[] labels = name.split("\\.");
-			for (String label : labels)
-			{
-				bb.put((byte)(label.length()));
-				bb.put(label.getBytes(StandardCharsets.US_ASCII));
-			}
-		}
-		bb.put((byte)0);
-		
-		return data;
-	}
+	public static byte[] serializeName(DNSName name)
+	{ return name.toWire(); }
 }
@@ -0,0 +1,116 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output for one message with RFC 1035 section 4.1.4 name compression.
+ * Every name suffix written is remembered with its offset, and a later name
+ * ending in a suffix already written gets a 2 byte pointer to it instead.
+ * Suffixes are matched case insensitively.
+ *
+ * Without a buffer nothing is written and only the length is counted, which
+ * is how DNS.getLength gets the compressed size.
+ */
+public class DNSCompressor
+{
+	/** Pointers only have 14 bits for the offset */
+	private static final int MAX_POINTER = 0x3fff;
+
+	private final ByteBuffer bb;
+	private final int start;
+	private int length;
+	private final List<Suffix> suffixes;
+
+	/** Only counts the length */
+	public DNSCompressor()
+	{ this(null); }
+
+	/** Writes the message into the buffer from its current position */
+	public DNSCompressor(ByteBuffer bb)
+	{
+		this.bb = bb;
+		this.start = (bb == null) ? 0 : bb.position();
+		this.length = 0;
+		this.suffixes = new ArrayList<Suffix>();
+	}
+
+	public int getLength()
+	{ return this.length; }
+
+	public DNSCompressor putName(DNSName name)
+	{
+		// a message only has a handful of names, a list beats hashing them
+		for (int k = 0; k < name.getLabelCount(); k++)
+		{
+			for (Suffix suffix : this.suffixes)
+			{
+				if (name.suffixEquals(k, suffix.name, suffix.label))
+				{ return this.putShort((short)(0b1100000000000000 | suffix.offset)); }
+			}
+			if (this.length <= MAX_POINTER)
+			{ this.suffixes.add(new Suffix(name, k, this.length)); }
+			name.writeLabel(k, this);
+		}
+		return this.put((byte)0);
+	}
+
+	public DNSCompressor put(byte b)
+	{
+		if (this.bb != null)
+		{ this.bb.put(b); }
+		this.length += 1;
+		return this;
+	}
+
+	public DNSCompressor put(byte[] src)
+	{
+		if (this.bb != null)
+		{ this.bb.put(src); }
+		this.length += src.length;
+		return this;
+	}
+
+	public DNSCompressor putShort(short s)
+	{
+		if (this.bb != null)
+		{ this.bb.putShort(s); }
+		this.length += 2;
+		return this;
+	}
+
+	public DNSCompressor putInt(int i)
+	{
+		if (this.bb != null)
+		{ this.bb.putInt(i); }
+		this.length += 4;
+		return this;
+	}
+
+	/**
+	 * Overwrites a short written earlier, e.g. a record data length that is
+	 * only known once the compressed data has been written.
+	 * @param offset from the start of the message
+	 */
+	public DNSCompressor putShortAt(int offset, short s)
+	{
+		if (this.bb != null)
+		{ this.bb.putShort(this.start + offset, s); }
+		return this;
+	}
+
+	private static class Suffix
+	{
+		final DNSName name;
+		final int label;
+		final int offset;
+
+		Suffix(DNSName name, int label, int offset)
+		{
+			this.name = name;
+			this.label = label;
+			this.offset = offset;
+		}
+	}
+}
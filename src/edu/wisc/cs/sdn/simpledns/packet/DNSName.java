@@ -0,0 +1,463 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A domain name, kept in wire form. The labels sit in one byte array along
+ * with the offset of each label and a case insensitive hash of every suffix,
+ * so equality, hashing and suffix tests never have to split or lowercase
+ * strings. Parent names share the array and only move the first label, so
+ * walking up towards the root doesn't copy anything.
+ *
+ * Names compare case insensitively like DNS does, but keep their case for
+ * when they are written out again. The dotted form has no trailing dot and
+ * the root is the empty string.
+ */
+public final class DNSName
+{
+	public static final int MAX_LENGTH = 255;
+
+	public static final DNSName ROOT = new DNSName(new byte[] { 0 },
+			new int[0], 0);
+
+	private static final int MAX_LABEL_LENGTH = 63;
+
+	/**
+	 * Keyed by the exact wire bytes and holding the names weakly, so names
+	 * nothing uses anymore can still be collected. Their entries are cleared
+	 * out from the queue by later calls to intern.
+	 */
+	private static final ConcurrentHashMap<Spelling, PooledName> pool =
+			new ConcurrentHashMap<Spelling, PooledName>();
+	private static final ReferenceQueue<DNSName> collected =
+			new ReferenceQueue<DNSName>();
+
+	private final byte[] wire;
+	private final int[] labels;
+	private final int[] hashes;
+	private final int first;
+	private String string;
+
+	private DNSName(byte[] wire, int[] labels, int first)
+	{
+		this.wire = wire;
+		this.labels = labels;
+		this.first = first;
+		this.hashes = new int[labels.length + 1];
+		int hash = 0;
+		this.hashes[labels.length] = hash;
+		for (int i = labels.length - 1; i >= 0; i--)
+		{
+			for (int b = labels[i]; b < this.end(i); b++)
+			{ hash = 31 * hash + lower(wire[b]); }
+			this.hashes[i] = hash;
+		}
+	}
+
+	private DNSName(DNSName name, int first)
+	{
+		this.wire = name.wire;
+		this.labels = name.labels;
+		this.hashes = name.hashes;
+		this.first = first;
+	}
+
+	/**
+	 * @param dotted the name in dotted form, a trailing dot is allowed
+	 * @return the interned name
+	 */
+	public static DNSName of(String dotted)
+	{
+		if (dotted.endsWith("."))
+		{ dotted = dotted.substring(0, dotted.length() - 1); }
+		if (dotted.isEmpty())
+		{ return ROOT; }
+
+		String[] parts = dotted.split("\\.", -1);
+		int[] labels = new int[parts.length];
+		ByteBuffer bb = ByteBuffer.allocate(dotted.length() + 2);
+		for (int i = 0; i < parts.length; i++)
+		{
+			byte[] label = parts[i].getBytes(StandardCharsets.US_ASCII);
+			if (label.length == 0 || label.length > MAX_LABEL_LENGTH)
+			{ throw new IllegalArgumentException("Bad label in " + dotted); }
+			labels[i] = bb.position();
+			bb.put((byte)label.length);
+			bb.put(label);
+		}
+		bb.put((byte)0);
+		if (bb.position() > MAX_LENGTH)
+		{ throw new IllegalArgumentException("Name too long: " + dotted); }
+		return new DNSName(bb.array(), labels, 0).intern();
+	}
+
+	/**
+	 * Reads the name at the buffer's position, following compression
+	 * pointers, and moves the position past it. The name is interned.
+	 */
+	public static DNSName deserialize(ByteBuffer bb)
+	{
+		int[] sizes = new int[2];
+		int end = walk(bb, bb.position(), sizes, null, null);
+		DNSName name = read(bb, bb.position(), sizes);
+		bb.position(end);
+		return name.intern();
+	}
+
+	/**
+	 * Reads the name at offset without moving the buffer's position. The name
+	 * isn't interned.
+	 * @param offset from the start of the message, which must be at index 0
+	 */
+	public static DNSName read(ByteBuffer bb, int offset)
+	{
+		int[] sizes = new int[2];
+		walk(bb, offset, sizes, null, null);
+		return read(bb, offset, sizes);
+	}
+
+	private static DNSName read(ByteBuffer bb, int offset, int[] sizes)
+	{
+		if (sizes[1] == 0)
+		{ return ROOT; }
+		byte[] wire = new byte[sizes[0]];
+		int[] labels = new int[sizes[1]];
+		walk(bb, offset, null, wire, labels);
+		return new DNSName(wire, labels, 0);
+	}
+
+	/**
+	 * Follows the name through any pointers. Called once to size the arrays
+	 * and again to fill them.
+	 * @param sizes if given, gets the wire length and label count
+	 * @param wire if given, gets the labels
+	 * @param labels if given, gets the offset of each label in wire
+	 * @return the offset just past the name where it starts
+	 */
+	private static int walk(ByteBuffer bb, int offset, int[] sizes,
+			byte[] wire, int[] labels)
+	{
+		int end = -1;
+		int length = 0;
+		int count = 0;
+		int hops = 0;
+		while (true)
+		{
+			int labelLength = bb.get(offset) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{
+				if (end < 0)
+				{ end = offset + 2; }
+				// a well formed pointer always points backwards, so this ends
+				if (++hops > 127)
+				{ throw new IllegalArgumentException("Compression pointer loop"); }
+				offset = bb.getShort(offset) & 0b0011111111111111;
+				continue;
+			}
+			if ((labelLength & 0b11000000) != 0)
+			{ throw new IllegalArgumentException("Unknown label type"); }
+			if (labelLength == 0)
+			{
+				if (end < 0)
+				{ end = offset + 1; }
+				break;
+			}
+			if (length + 1 + labelLength + 1 > MAX_LENGTH)
+			{ throw new IllegalArgumentException("Name longer than 255 bytes"); }
+			if (wire != null)
+			{
+				labels[count] = length;
+				for (int i = 0; i <= labelLength; i++)
+				{ wire[length + i] = bb.get(offset + i); }
+			}
+			length += 1 + labelLength;
+			count++;
+			offset += 1 + labelLength;
+		}
+		if (wire != null)
+		{ wire[length] = 0; }
+		if (sizes != null)
+		{
+			sizes[0] = length + 1;
+			sizes[1] = count;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the pooled name with exactly the same spelling, this one if
+	 * there wasn't one yet. Lock free, and the only thing made on the way is
+	 * the key.
+	 */
+	public DNSName intern()
+	{
+		expunge();
+		// keyed by the exact spelling, not equals, so case survives
+		Spelling key = new Spelling(this.wire, this.start(this.first));
+		PooledName ref = pool.get(key);
+		while (true)
+		{
+			DNSName interned = (ref == null) ? null : ref.get();
+			if (interned != null)
+			{ return interned; }
+			PooledName mine = new PooledName(this, key);
+			if ((ref == null) ? pool.putIfAbsent(key, mine) == null
+					: pool.replace(key, ref, mine))
+			{ return this; }
+			// somebody else got there first
+			ref = pool.get(key);
+		}
+	}
+
+	private static void expunge()
+	{
+		Reference<? extends DNSName> ref;
+		while ((ref = collected.poll()) != null)
+		{ pool.remove(((PooledName)ref).key, ref); }
+	}
+
+	public int getLabelCount()
+	{ return this.labels.length - this.first; }
+
+	/** @return the length written out uncompressed, with the final 0 byte */
+	public int getWireLength()
+	{ return this.wire.length - this.start(this.first); }
+
+	/** @return the name uncompressed in wire form */
+	public byte[] toWire()
+	{
+		byte[] data = new byte[this.getWireLength()];
+		System.arraycopy(this.wire, this.start(this.first), data, 0,
+				data.length);
+		return data;
+	}
+
+	/** Writes the name uncompressed at the buffer's position. */
+	public void putWire(ByteBuffer bb)
+	{ bb.put(this.wire, this.start(this.first), this.getWireLength()); }
+
+	/**
+	 * @return true if the uncompressed name at offset is this one, compared
+	 * case insensitively like equals
+	 */
+	public boolean equalsWire(ByteBuffer bb, int offset)
+	{
+		int from = this.start(this.first);
+		int length = this.wire.length - from;
+		if (offset + length > bb.limit())
+		{ return false; }
+		for (int b = 0; b < length; b++)
+		{
+			if (lower(this.wire[from + b]) != lower(bb.get(offset + b)))
+			{ return false; }
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the labels whose length bytes sit at the given offsets
+	 * in bb spell this name, compared case insensitively like equals
+	 */
+	public boolean equalsLabels(ByteBuffer bb, int[] labels, int count)
+	{
+		if (count != this.getLabelCount())
+		{ return false; }
+		for (int k = 0; k < count; k++)
+		{
+			int i = this.first + k;
+			for (int b = this.labels[i]; b < this.end(i); b++)
+			{
+				// the length bytes come first, so a shorter label ends this
+				if (lower(this.wire[b]) != lower(bb.get(labels[k] + b - this.labels[i])))
+				{ return false; }
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the labels at the given offsets in bb and the
+	 * uncompressed name at offset in other are the same name
+	 */
+	public static boolean equalsLabels(ByteBuffer bb, int[] labels, int count,
+			ByteBuffer other, int offset)
+	{
+		for (int k = 0; k < count; k++)
+		{
+			int length = 1 + (bb.get(labels[k]) & 0xff);
+			if (offset + length > other.limit())
+			{ return false; }
+			for (int b = 0; b < length; b++)
+			{
+				if (lower(bb.get(labels[k] + b)) != lower(other.get(offset + b)))
+				{ return false; }
+			}
+			offset += length;
+		}
+		return offset < other.limit() && other.get(offset) == 0;
+	}
+
+	/**
+	 * @return the same hash hashCode gives the name spelled by the labels at
+	 * the given offsets in bb, without reading the name in
+	 */
+	public static int hashLabels(ByteBuffer bb, int[] labels, int count)
+	{
+		int hash = 0;
+		for (int k = count - 1; k >= 0; k--)
+		{
+			int length = 1 + (bb.get(labels[k]) & 0xff);
+			for (int b = 0; b < length; b++)
+			{ hash = 31 * hash + lower(bb.get(labels[k] + b)); }
+		}
+		return hash;
+	}
+
+	/** @return the name without its first label, null for the root */
+	public DNSName parent()
+	{
+		if (this.getLabelCount() == 0)
+		{ return null; }
+		if (this.getLabelCount() == 1)
+		{ return ROOT; }
+		return new DNSName(this, this.first + 1);
+	}
+
+	/** @return true if this is the zone itself or a name below it */
+	public boolean isSubdomainOf(DNSName zone)
+	{
+		int skip = this.getLabelCount() - zone.getLabelCount();
+		return skip >= 0 && this.suffixEquals(skip, zone, 0);
+	}
+
+	/**
+	 * @return true if this name from its label k on is the same as other
+	 * from its label otherK on
+	 */
+	boolean suffixEquals(int k, DNSName other, int otherK)
+	{
+		int i = this.first + k;
+		int j = other.first + otherK;
+		if (this.hashes[i] != other.hashes[j])
+		{ return false; }
+		int from = this.start(i);
+		int otherFrom = other.start(j);
+		int length = this.wire.length - from;
+		if (length != other.wire.length - otherFrom)
+		{ return false; }
+		for (int b = 0; b < length; b++)
+		{
+			if (lower(this.wire[from + b]) != lower(other.wire[otherFrom + b]))
+			{ return false; }
+		}
+		return true;
+	}
+
+	/** Writes label k with its length byte. */
+	void writeLabel(int k, DNSCompressor out)
+	{
+		int i = this.first + k;
+		for (int b = this.labels[i]; b < this.end(i); b++)
+		{ out.put(this.wire[b]); }
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o)
+		{ return true; }
+		if (!(o instanceof DNSName))
+		{ return false; }
+		DNSName other = (DNSName)o;
+		return this.getLabelCount() == other.getLabelCount()
+				&& this.suffixEquals(0, other, 0);
+	}
+
+	@Override
+	public int hashCode()
+	{ return this.hashes[this.first]; }
+
+	public String toString()
+	{
+		if (this.string == null)
+		{
+			StringBuilder sb = new StringBuilder(this.getWireLength());
+			for (int i = this.first; i < this.labels.length; i++)
+			{
+				if (i > this.first)
+				{ sb.append('.'); }
+				for (int b = this.labels[i] + 1; b < this.end(i); b++)
+				{ sb.append((char)(this.wire[b] & 0xff)); }
+			}
+			this.string = sb.toString();
+		}
+		return this.string;
+	}
+
+	/** @return where label i starts, the final 0 byte for the root */
+	private int start(int i)
+	{ return (i < this.labels.length) ? this.labels[i] : this.wire.length - 1; }
+
+	private int end(int i)
+	{ return this.labels[i] + 1 + (this.wire[this.labels[i]] & 0xff); }
+
+	private static int lower(byte b)
+	{ return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b; }
+
+	/** The wire bytes of a name, compared exactly, case and all */
+	private static class Spelling
+	{
+		final byte[] wire;
+		final int from;
+		final int hash;
+
+		Spelling(byte[] wire, int from)
+		{
+			this.wire = wire;
+			this.from = from;
+			int hash = 0;
+			for (int b = from; b < wire.length; b++)
+			{ hash = 31 * hash + wire[b]; }
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode()
+		{ return this.hash; }
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Spelling))
+			{ return false; }
+			Spelling other = (Spelling)o;
+			int length = this.wire.length - this.from;
+			if (this.hash != other.hash
+					|| length != other.wire.length - other.from)
+			{ return false; }
+			for (int b = 0; b < length; b++)
+			{
+				if (this.wire[this.from + b] != other.wire[other.from + b])
+				{ return false; }
+			}
+			return true;
+		}
+	}
+
+	/** Remembers its key so the entry can go once the name is collected */
+	private static class PooledName extends WeakReference<DNSName>
+	{
+		final Spelling key;
+
+		PooledName(DNSName name, Spelling key)
+		{
+			super(name, collected);
+			this.key = key;
+		}
+	}
+}
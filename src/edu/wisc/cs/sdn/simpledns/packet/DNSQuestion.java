@@ -4,27 +4,27 @@ import java.nio.ByteBuffer;
 
 public class DNSQuestion 
 {
-	private String name;
+	private DNSName name;
 	private short type;
 	private short cls;
 	
 	public DNSQuestion()
 	{
-		this.name = new String();
+		this.name = DNSName.ROOT;
 		this.cls = DNS.CLASS_IN;
 	}
 	
-	public DNSQuestion(String name, short type)
+	public DNSQuestion(DNSName name, short type)
 	{
 		this();
 		this.name = name;
 		this.type = type;
 	}
 	
-	public String getName()
+	public DNSName getName()
 	{ return this.name; }
 	
-	public void setName(String name)
+	public void setName(DNSName name)
 	{ this.name = name; }
 	
 	public short getType()
@@ -62,9 +62,12 @@ public class DNSQuestion
 		return data;
 	}
 	
+	public void serialize(DNSCompressor out)
+	{ out.putName(this.name).putShort(this.type).putShort(this.cls); }
+	
 	public int getLength()
 	{
-		return this.name.length() + 1 + (name.length() > 0 ? 1 : 0) + 4;
+		return this.name.getWireLength() + 4;
 	}
 	
 	public String toString()
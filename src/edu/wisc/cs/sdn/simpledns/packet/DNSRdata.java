@@ -3,5 +3,6 @@ package edu.wisc.cs.sdn.simpledns.packet;
 public interface DNSRdata 
 {
 	public byte[] serialize();
+	public void serialize(DNSCompressor out);
 	public int getLength();
 }
@@ -1,62 +1,169 @@
 package edu.wisc.cs.sdn.simpledns.packet;
 
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
-public class DNSRdataAddress implements DNSRdata 
+/**
+ * The address of an A or AAAA record. It is kept as primitives, an int for
+ * IPv4 and two longs for IPv6, so reading one off the wire and handing it to
+ * the EC2 lookup never builds an InetAddress or a string. The InetAddress is
+ * only made when somebody asks for it.
+ */
+public class DNSRdataAddress implements DNSRdata
 {
+	/** Longest an IPv4 address gets in dotted quad form */
+	public static final int MAX_IPV4_CHARS = 15;
+
 	private InetAddress address;
-	
+	// 4 or 16 once an address is set, 0 before
+	private int length;
+	private int ipv4;
+	private long ipv6High;
+	private long ipv6Low;
+
 	public DNSRdataAddress()
 	{ }
-	
+
 	public DNSRdataAddress(InetAddress address)
-	{ this.address = address; }
-	
+	{ this.setAddress(address); }
+
+	public DNSRdataAddress(int ipv4)
+	{
+		this.length = 4;
+		this.ipv4 = ipv4;
+	}
+
 	public InetAddress getAddress()
-	{ return this.address; }
-	
+	{
+		if (this.address == null && this.length != 0)
+		{
+			try
+			{ this.address = InetAddress.getByAddress(this.serialize()); }
+			catch (UnknownHostException e)
+			{ throw new IllegalStateException(e); }
+		}
+		return this.address;
+	}
+
 	public void setAddress(InetAddress address)
-	{ this.address = address; }
-	
+	{
+		this.address = address;
+		ByteBuffer bb = ByteBuffer.wrap(address.getAddress());
+		this.length = bb.remaining();
+		if (this.length == 4)
+		{ this.ipv4 = bb.getInt(); }
+		else
+		{
+			this.ipv6High = bb.getLong();
+			this.ipv6Low = bb.getLong();
+		}
+	}
+
+	public boolean isIPv4()
+	{ return this.length == 4; }
+
+	public boolean isIPv6()
+	{ return this.length == 16; }
+
+	/** @return the IPv4 address, most significant octet first */
+	public int getIPv4()
+	{
+		if (this.length != 4)
+		{ throw new IllegalStateException("Not an IPv4 address"); }
+		return this.ipv4;
+	}
+
+	/** @return the first 8 bytes of the IPv6 address */
+	public long getIPv6High()
+	{
+		if (this.length != 16)
+		{ throw new IllegalStateException("Not an IPv6 address"); }
+		return this.ipv6High;
+	}
+
+	/** @return the last 8 bytes of the IPv6 address */
+	public long getIPv6Low()
+	{
+		if (this.length != 16)
+		{ throw new IllegalStateException("Not an IPv6 address"); }
+		return this.ipv6Low;
+	}
+
 	public static DNSRdata deserialize(ByteBuffer bb, short len)
 	{
-		DNSRdataAddress rdata = new DNSRdataAddress();		
-		byte[] addrBytes = new byte[len];
-		bb.get(addrBytes);
-		try
+		DNSRdataAddress rdata = new DNSRdataAddress();
+		if (4 == len)
 		{
-			if (4 == len)
-			{ rdata.address = Inet4Address.getByAddress(addrBytes); } 
-			else if (16 == len)
-			{ rdata.address = Inet6Address.getByAddress(addrBytes); } 
+			rdata.length = 4;
+			rdata.ipv4 = bb.getInt();
 		}
-		catch (UnknownHostException e) 
-		{ e.printStackTrace(); }
+		else if (16 == len)
+		{
+			rdata.length = 16;
+			rdata.ipv6High = bb.getLong();
+			rdata.ipv6Low = bb.getLong();
+		}
+		else
+		{ bb.position(bb.position() + len); }
 		return rdata;
 	}
-	
+
 	public byte[] serialize()
 	{
 		byte[] data = new byte[this.getLength()];
 		ByteBuffer bb = ByteBuffer.wrap(data);
-		bb.put(this.address.getAddress());
+		if (this.length == 4)
+		{ bb.putInt(this.ipv4); }
+		else if (this.length == 16)
+		{ bb.putLong(this.ipv6High).putLong(this.ipv6Low); }
 		return data;
 	}
-	
+
+	public void serialize(DNSCompressor out)
+	{
+		if (this.length == 4)
+		{ out.putInt(this.ipv4); }
+		else
+		{ out.put(this.serialize()); }
+	}
+
+	/**
+	 * @return 4 or 16, or 0 if no address was ever set or the record came
+	 * off the wire with some other length, which then goes back out empty
+	 */
 	public int getLength()
+	{ return this.length; }
+
+	/**
+	 * Writes an IPv4 address in dotted quad form without building anything
+	 * on the way.
+	 * @param out needs room for MAX_IPV4_CHARS from offset
+	 * @return where the address ends in out
+	 */
+	public static int formatIPv4(int address, char[] out, int offset)
 	{
-		if (this.address instanceof Inet4Address)
-		{ return 4; }
-		else if (this.address instanceof Inet6Address)
-		{ return 16; }
-		System.err.println("SHOULD NOT GET HERE!!");
-		return 0;
+		for (int i = 3; i >= 0; i--)
+		{
+			int octet = (address >>> (i * 8)) & 0xff;
+			if (octet >= 100)
+			{ out[offset++] = (char)('0' + octet / 100); }
+			if (octet >= 10)
+			{ out[offset++] = (char)('0' + (octet / 10) % 10); }
+			out[offset++] = (char)('0' + octet % 10);
+			if (i != 0)
+			{ out[offset++] = '.'; }
+		}
+		return offset;
 	}
-	
+
 	public String toString()
-	{ return this.address.getHostAddress(); }
+	{
+		if (this.length == 4)
+		{
+			char[] chars = new char[MAX_IPV4_CHARS];
+			return new String(chars, 0, formatIPv4(this.ipv4, chars, 0));
+		}
+		return this.getAddress().getHostAddress();
+	}
 }
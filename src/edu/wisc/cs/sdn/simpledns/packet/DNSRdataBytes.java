@@ -29,6 +29,9 @@ public class DNSRdataBytes implements DNSRdata
 	public byte[] serialize()
 	{ return this.bytes; }
 	
+	public void serialize(DNSCompressor out)
+	{ out.put(this.serialize()); }
+	
 	public int getLength()
 	{ return this.bytes.length; }
 
@@ -4,18 +4,18 @@ import java.nio.ByteBuffer;
 
 public class DNSRdataName implements DNSRdata 
 {
-	private String name;
+	private DNSName name;
 	
 	public DNSRdataName()
-	{ this.name = new String(); }
+	{ this.name = DNSName.ROOT; }
 	
-	public DNSRdataName(String name)
+	public DNSRdataName(DNSName name)
 	{ this.name = name; }
 	
-	public String getName()
+	public DNSName getName()
 	{ return this.name; }
 	
-	public void setName(String name)
+	public void setName(DNSName name)
 	{ this.name = name; }
 	
 	public static DNSRdata deserialize(ByteBuffer bb)
@@ -28,9 +28,12 @@ public class DNSRdataName implements DNSRdata
 	public byte[] serialize()
 	{ return DNS.serializeName(this.name); }
 	
+	public void serialize(DNSCompressor out)
+	{ out.putName(this.name); }
+	
 	public int getLength()
-	{ return this.name.length() + (this.name.length() > 0 ? 2 : 0); }
+	{ return this.name.getWireLength(); }
 	
 	public String toString()
-	{ return this.name; }
+	{ return this.name.toString(); }
 }
@@ -0,0 +1,108 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+public class DNSRdataSOA implements DNSRdata 
+{
+	private DNSName mname;
+	private DNSName rname;
+	private int serial;
+	private int refresh;
+	private int retry;
+	private int expire;
+	private int minimum;
+	
+	public DNSRdataSOA()
+	{
+		this.mname = DNSName.ROOT;
+		this.rname = DNSName.ROOT;
+	}
+	
+	public DNSName getMname()
+	{ return this.mname; }
+	
+	public void setMname(DNSName mname)
+	{ this.mname = mname; }
+	
+	public DNSName getRname()
+	{ return this.rname; }
+	
+	public void setRname(DNSName rname)
+	{ this.rname = rname; }
+	
+	public int getSerial()
+	{ return this.serial; }
+	
+	public void setSerial(int serial)
+	{ this.serial = serial; }
+	
+	public int getRefresh()
+	{ return this.refresh; }
+	
+	public void setRefresh(int refresh)
+	{ this.refresh = refresh; }
+	
+	public int getRetry()
+	{ return this.retry; }
+	
+	public void setRetry(int retry)
+	{ this.retry = retry; }
+	
+	public int getExpire()
+	{ return this.expire; }
+	
+	public void setExpire(int expire)
+	{ this.expire = expire; }
+	
+	public int getMinimum()
+	{ return this.minimum; }
+	
+	public void setMinimum(int minimum)
+	{ this.minimum = minimum; }
+	
+	public static DNSRdata deserialize(ByteBuffer bb)
+	{
+		DNSRdataSOA rdata = new DNSRdataSOA();
+		rdata.mname = DNS.deserializeName(bb);
+		rdata.rname = DNS.deserializeName(bb);
+		rdata.serial = bb.getInt();
+		rdata.refresh = bb.getInt();
+		rdata.retry = bb.getInt();
+		rdata.expire = bb.getInt();
+		rdata.minimum = bb.getInt();
+		return rdata;
+	}
+	
+	public byte[] serialize()
+	{
+		byte[] data = new byte[this.getLength()];
+		ByteBuffer bb = ByteBuffer.wrap(data);
+		bb.put(DNS.serializeName(this.mname));
+		bb.put(DNS.serializeName(this.rname));
+		bb.putInt(this.serial);
+		bb.putInt(this.refresh);
+		bb.putInt(this.retry);
+		bb.putInt(this.expire);
+		bb.putInt(this.minimum);
+		return data;
+	}
+	
+	public void serialize(DNSCompressor out)
+	{
+		out.putName(this.mname).putName(this.rname);
+		out.putInt(this.serial).putInt(this.refresh).putInt(this.retry)
+				.putInt(this.expire).putInt(this.minimum);
+	}
+	
+	public int getLength()
+	{
+		return this.mname.getWireLength() + this.rname.getWireLength() + 20;
+	}
+	
+	public String toString()
+	{
+		return String.format("%s %s %d %d %d %d %d", this.mname, this.rname,
+				this.serial & 0xffffffffL, this.refresh, this.retry, this.expire,
+				this.minimum);
+	}
+}
@@ -38,6 +38,9 @@ public class DNSRdataString implements DNSRdata
 		return data; 
 	}
 	
+	public void serialize(DNSCompressor out)
+	{ out.put(this.serialize()); }
+	
 	public int getLength()
 	{ return this.string.length() + 1; }
 
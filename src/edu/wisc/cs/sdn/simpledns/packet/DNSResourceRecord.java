@@ -4,7 +4,7 @@ import java.nio.ByteBuffer;
 
 public class DNSResourceRecord 
 {
-	private String name;
+	private DNSName name;
 	private short type;
 	private short cls;
 	private int ttl;
@@ -12,12 +12,12 @@ public class DNSResourceRecord
 	
 	public DNSResourceRecord()
 	{
-		this.name = new String();
+		this.name = DNSName.ROOT;
 		this.cls = DNS.CLASS_IN;
 		this.data = new DNSRdataBytes();
 	}
 	
-	public DNSResourceRecord(String name, short type, DNSRdata data)
+	public DNSResourceRecord(DNSName name, short type, DNSRdata data)
 	{
 		this();
 		this.name = name;
@@ -25,10 +25,10 @@ public class DNSResourceRecord
 		this.data = data;
 	}
 	
-	public String getName()
+	public DNSName getName()
 	{ return this.name; }
 	
-	public void setName(String name)
+	public void setName(DNSName name)
 	{ this.name = name; }
 	
 	public short getType()
@@ -40,6 +40,9 @@ public class DNSResourceRecord
 	public short getCls()
 	{ return this.cls; }
 	
+	public void setClass(short cls)
+	{ this.cls = cls; }
+	
 	public int getTtl()
 	{ return this.ttl; }
 	
@@ -75,6 +78,9 @@ public class DNSResourceRecord
 			case DNS.TYPE_CNAME:
 				record.data = DNSRdataName.deserialize(bb);
 				break;
+			case DNS.TYPE_SOA:
+				record.data = DNSRdataSOA.deserialize(bb);
+				break;
 			default:
 				record.data = DNSRdataBytes.deserialize(bb, rdataLength);
 			}
@@ -98,10 +104,21 @@ public class DNSResourceRecord
 		return data;
 	}
 	
+	public void serialize(DNSCompressor out)
+	{
+		out.putName(this.name).putShort(this.type).putShort(this.cls)
+				.putInt(this.ttl);
+		// Names in the data can be compressed too, so its length is only
+		// known once it has been written
+		int lengthAt = out.getLength();
+		out.putShort((short)0);
+		this.data.serialize(out);
+		out.putShortAt(lengthAt, (short)(out.getLength() - lengthAt - 2));
+	}
+	
 	public int getLength()
 	{
-		return 1 + this.name.length() + (this.name.length() > 0 ? 1 : 0)
-				+ 10 + this.data.getLength();
+		return this.name.getWireLength() + 10 + this.data.getLength();
 	}
 	
 	public String toString()
@@ -118,9 +135,15 @@ public class DNSResourceRecord
 		case DNS.TYPE_CNAME:
 			strType = "CNAME";
 			break;
+		case DNS.TYPE_SOA:
+			strType = "SOA";
+			break;
 		case DNS.TYPE_AAAA:
 			strType = "AAAA";
 			break;
+		case DNS.TYPE_OPT:
+			strType = "OPT";
+			break;
 		case DNS.TYPE_CDN:
 			strType = "CDN";
 			break;
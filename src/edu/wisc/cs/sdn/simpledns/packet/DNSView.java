@@ -0,0 +1,173 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight reader over a message in a ByteBuffer. Nothing is copied out,
+ * every field is read in place by offset, so one view can be rewrapped
+ * around every packet without making garbage. Offsets are from the start of
+ * the message, which must be at index 0 of the buffer, same as for
+ * DNS.deserialize.
+ */
+public class DNSView
+{
+	public static final int HEADER_LENGTH = 12;
+
+	private ByteBuffer bb;
+	private int length;
+
+	public DNSView wrap(ByteBuffer bb)
+	{
+		if (bb.limit() < HEADER_LENGTH)
+		{ throw new IllegalArgumentException("Message shorter than a header"); }
+		this.bb = bb;
+		this.length = bb.limit();
+		return this;
+	}
+
+	public int getLength()
+	{ return this.length; }
+
+	public short getId()
+	{ return this.bb.getShort(0); }
+
+	public boolean isQuery()
+	{ return (this.bb.get(2) & 0b10000000) == 0; }
+
+	public byte getOpcode()
+	{ return (byte)((this.bb.get(2) & 0b01111000) >> 3); }
+
+	public boolean isTruncated()
+	{ return (this.bb.get(2) & 0b00000010) != 0; }
+
+	public boolean isRecursionDesired()
+	{ return (this.bb.get(2) & 0b00000001) != 0; }
+
+	public byte getRcode()
+	{ return (byte)(this.bb.get(3) & 0b00001111); }
+
+	public int getQuestionCount()
+	{ return this.bb.getShort(4) & 0xffff; }
+
+	public int getAnswerCount()
+	{ return this.bb.getShort(6) & 0xffff; }
+
+	public int getAuthorityCount()
+	{ return this.bb.getShort(8) & 0xffff; }
+
+	public int getAdditionalCount()
+	{ return this.bb.getShort(10) & 0xffff; }
+
+	public byte get(int offset)
+	{ return this.bb.get(this.check(offset, 1)); }
+
+	/**
+	 * @return the offset just past the name that starts at offset, a
+	 * compression pointer ends the name in place
+	 */
+	public int skipName(int offset)
+	{
+		while (true)
+		{
+			int labelLength = this.bb.get(this.check(offset, 1)) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{ return this.check(offset, 2) + 2; }
+			if (labelLength == 0)
+			{ return offset + 1; }
+			offset += 1 + labelLength;
+		}
+	}
+
+	/**
+	 * @return the offset of the first label byte of the name at offset,
+	 * following compression pointers
+	 */
+	public int followPointers(int offset)
+	{
+		// a well formed pointer always points backwards, so this ends
+		int hops = 0;
+		while (((this.bb.get(this.check(offset, 1)) & 0b11000000) == 0b11000000))
+		{
+			if (++hops > 127)
+			{ throw new IllegalArgumentException("Compression pointer loop"); }
+			offset = this.bb.getShort(this.check(offset, 2)) & 0b0011111111111111;
+		}
+		return offset;
+	}
+
+	/**
+	 * Finds where each label of the name at offset starts, following
+	 * compression pointers, without copying anything out.
+	 * @param labels gets the offset of each label's length byte, 127 entries
+	 * are always enough
+	 * @return how many labels the name has
+	 */
+	public int readLabels(int offset, int[] labels)
+	{
+		int count = 0;
+		int length = 1;
+		int hops = 0;
+		while (true)
+		{
+			int labelLength = this.bb.get(this.check(offset, 1)) & 0xff;
+			if ((labelLength & 0b11000000) == 0b11000000)
+			{
+				// more pointers than a name can have labels only happens in a loop
+				if (++hops > 127)
+				{ throw new IllegalArgumentException("Compression pointer loop"); }
+				offset = this.bb.getShort(this.check(offset, 2)) & 0b0011111111111111;
+				continue;
+			}
+			if ((labelLength & 0b11000000) != 0)
+			{ throw new IllegalArgumentException("Unknown label type"); }
+			if (labelLength == 0)
+			{ return count; }
+			length += 1 + labelLength;
+			if (length > DNSName.MAX_LENGTH)
+			{ throw new IllegalArgumentException("Name longer than 255 bytes"); }
+			labels[count++] = this.check(offset, 1 + labelLength);
+			offset += 1 + labelLength;
+		}
+	}
+
+	/**
+	 * Copies the name at offset out, this allocates but doesn't intern.
+	 */
+	public DNSName readName(int offset)
+	{ return DNSName.read(this.bb, offset); }
+
+	/** Type of the question or record whose name ends at nameEnd. */
+	public short getType(int nameEnd)
+	{ return this.bb.getShort(this.check(nameEnd, 2)); }
+
+	/** Class of the question or record whose name ends at nameEnd. */
+	public short getClass(int nameEnd)
+	{ return this.bb.getShort(this.check(nameEnd + 2, 2)); }
+
+	public int getTtl(int nameEnd)
+	{ return this.bb.getInt(this.check(nameEnd + 4, 4)); }
+
+	public int getDataLength(int nameEnd)
+	{ return this.bb.getShort(this.check(nameEnd + 8, 2)) & 0xffff; }
+
+	/** @return the offset just past the question whose name starts at offset */
+	public int skipQuestion(int offset)
+	{ return this.check(this.skipName(offset), 4) + 4; }
+
+	/** @return the offset just past the record whose name starts at offset */
+	public int skipRecord(int offset)
+	{
+		int nameEnd = this.skipName(offset);
+		int end = nameEnd + 10 + this.getDataLength(nameEnd);
+		if (end > this.length)
+		{ throw new IllegalArgumentException("Record runs past end of message"); }
+		return end;
+	}
+
+	private int check(int offset, int len)
+	{
+		if (offset < 0 || offset + len > this.length)
+		{ throw new IllegalArgumentException("Read past end of message"); }
+		return offset;
+	}
+}
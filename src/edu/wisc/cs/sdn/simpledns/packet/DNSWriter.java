@@ -0,0 +1,114 @@
+package edu.wisc.cs.sdn.simpledns.packet;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a message straight into a caller's buffer, the counterpart of
+ * DNSView. The buffer is reused from message to message, so building a
+ * response this way makes no garbage. The message starts at the buffer's
+ * position when wrapped.
+ */
+public class DNSWriter
+{
+	private ByteBuffer bb;
+	private int start;
+
+	public DNSWriter wrap(ByteBuffer bb)
+	{
+		this.bb = bb;
+		this.start = bb.position();
+		return this;
+	}
+
+	/** @return bytes written so far */
+	public int getLength()
+	{ return this.bb.position() - this.start; }
+
+	public DNSWriter header(short id, boolean query, byte opcode,
+			boolean authoritative, boolean truncated, boolean recursionDesired,
+			boolean recursionAvailable, byte rcode)
+	{
+		this.bb.putShort(id);
+		byte tmp = 0;
+		tmp |= (byte)(query ? 0 : (1 << 7));
+		tmp |= (byte)(opcode << 3);
+		tmp |= (byte)(authoritative ? (1 << 2) : 0);
+		tmp |= (byte)(truncated ? (1 << 1) : 0);
+		tmp |= (byte)(recursionDesired ? 1 : 0);
+		this.bb.put(tmp);
+		this.bb.put((byte)((recursionAvailable ? (1 << 7) : 0)
+				| (rcode & 0b00001111)));
+		// counts are patched in once the sections are written
+		this.bb.putLong(0);
+		return this;
+	}
+
+	public DNSWriter setQuestionCount(int count)
+	{ this.bb.putShort(this.start + 4, (short)count); return this; }
+
+	public DNSWriter setAnswerCount(int count)
+	{ this.bb.putShort(this.start + 6, (short)count); return this; }
+
+	public DNSWriter setAuthorityCount(int count)
+	{ this.bb.putShort(this.start + 8, (short)count); return this; }
+
+	public DNSWriter setAdditionalCount(int count)
+	{ this.bb.putShort(this.start + 10, (short)count); return this; }
+
+	/** Copies len bytes of another message starting at offset. */
+	public DNSWriter put(ByteBuffer src, int offset, int len)
+	{
+		for (int i = 0; i < len; i++)
+		{ this.bb.put(src.get(offset + i)); }
+		return this;
+	}
+
+	/** Copies what is left of src in bulk, moving its position to its limit. */
+	public DNSWriter put(ByteBuffer src)
+	{ this.bb.put(src); return this; }
+
+	public DNSWriter put(byte[] src, int offset, int len)
+	{ this.bb.put(src, offset, len); return this; }
+
+	public DNSWriter put(byte b)
+	{ this.bb.put(b); return this; }
+
+	public DNSWriter putShort(short s)
+	{ this.bb.putShort(s); return this; }
+
+	public DNSWriter putInt(int i)
+	{ this.bb.putInt(i); return this; }
+
+	/** Overwrites an int at an offset from the start of the message. */
+	public DNSWriter putIntAt(int offset, int i)
+	{ this.bb.putInt(this.start + offset, i); return this; }
+
+	/** Writes an IPv4 address as ASCII in dotted quad form. */
+	public DNSWriter putDottedQuad(int address)
+	{
+		for (int i = 3; i >= 0; i--)
+		{
+			int octet = (address >>> (i * 8)) & 0xff;
+			if (octet >= 100)
+			{ this.bb.put((byte)('0' + octet / 100)); }
+			if (octet >= 10)
+			{ this.bb.put((byte)('0' + (octet / 10) % 10)); }
+			this.bb.put((byte)('0' + octet % 10));
+			if (i != 0)
+			{ this.bb.put((byte)'.'); }
+		}
+		return this;
+	}
+
+	/** @return how many bytes putDottedQuad writes for the address */
+	public static int dottedQuadLength(int address)
+	{
+		int len = 3;
+		for (int i = 3; i >= 0; i--)
+		{
+			int octet = (address >>> (i * 8)) & 0xff;
+			len += (octet >= 100) ? 3 : ((octet >= 10) ? 2 : 1);
+		}
+		return len;
+	}
+}